@@ -0,0 +1,151 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Runs the gitlet benchmarks and keeps their results as a baseline.
+ *
+ *  Usage: java -jar benchmarks.jar [--baseline FILE] [JMH options]
+ *
+ *  The results are written to FILE, by default benchmark-baseline.tsv, one
+ *  line per benchmark and set of parameters: the benchmark, its
+ *  parameters, the score, its error and the unit, separated by tabs.  If
+ *  FILE already holds a baseline, each new result is first compared with
+ *  the old one, and the command exits with status 1 if any benchmark got
+ *  slower by more than both the errors of the two runs and THRESHOLD, so
+ *  a script can fail on regressions.  JMH's own JSON report is written
+ *  beside FILE.  JMH options, such as a benchmark name pattern or -p
+ *  files=100, are passed on.
+ *
+ *  @author yyy
+ */
+public class BenchmarkMain {
+
+    /** Smallest slowdown, as a fraction of the old score, reported as a
+     *  regression. */
+    private static final double THRESHOLD = 0.10;
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        File baseline = new File("benchmark-baseline.tsv");
+        List<String> jmhArgs = new ArrayList<>(Arrays.asList(args));
+        int i = jmhArgs.indexOf("--baseline");
+        if (i >= 0 && i + 1 < jmhArgs.size()) {
+            baseline = new File(jmhArgs.get(i + 1));
+            jmhArgs.subList(i, i + 2).clear();
+        }
+        Options options;
+        try {
+            options = new OptionsBuilder()
+                    .parent(new CommandLineOptions(jmhArgs.toArray(new String[0])))
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(baseline.getAbsoluteFile().getParentFile(),
+                            "jmh-result.json").getPath())
+                    .build();
+        } catch (CommandLineOptionException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        Map<String, String[]> results = toRows(new Runner(options).run());
+        boolean regressed = false;
+        if (baseline.exists()) {
+            regressed = compare(readRows(baseline), results);
+        }
+        writeRows(baseline, results.values());
+        if (regressed) {
+            System.exit(1);
+        }
+    }
+
+    /** Returns the baseline rows of RESULTS, keyed by benchmark and
+     *  parameters. */
+    private static Map<String, String[]> toRows(Collection<RunResult> results) {
+        Map<String, String[]> rows = new TreeMap<>();
+        for (RunResult result: results) {
+            String name = result.getParams().getBenchmark();
+            name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1);
+            StringBuilder params = new StringBuilder();
+            for (String key: result.getParams().getParamsKeys()) {
+                if (params.length() > 0) {
+                    params.append(',');
+                }
+                params.append(key).append('=').append(result.getParams().getParam(key));
+            }
+            Result<?> primary = result.getPrimaryResult();
+            String[] row = {name, params.toString(), Double.toString(primary.getScore()),
+                Double.toString(primary.getScoreError()), primary.getScoreUnit()};
+            rows.put(name + "\t" + params, row);
+        }
+        return rows;
+    }
+
+    private static Map<String, String[]> readRows(File file) throws IOException {
+        Map<String, String[]> rows = new LinkedHashMap<>();
+        for (String line: Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            String[] row = line.split("\t", -1);
+            if (row.length == 5 && !line.startsWith("#")) {
+                rows.put(row[0] + "\t" + row[1], row);
+            }
+        }
+        return rows;
+    }
+
+    private static void writeRows(File file, Collection<String[]> rows) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# benchmark\tparams\tscore\terror\tunit");
+        for (String[] row: rows) {
+            lines.add(String.join("\t", row));
+        }
+        Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+    }
+
+    /** Prints how each of NEWROWS compares with the same benchmark in
+     *  OLDROWS.  Returns whether any got significantly slower. */
+    private static boolean compare(Map<String, String[]> oldRows, Map<String, String[]> newRows) {
+        boolean regressed = false;
+        System.out.printf("%n%-40s %-40s %12s %12s %8s%n",
+                "Benchmark", "Params", "Baseline", "Now", "Change");
+        for (Map.Entry<String, String[]> entry: newRows.entrySet()) {
+            String[] now = entry.getValue();
+            String[] old = oldRows.get(entry.getKey());
+            if (old == null || !old[4].equals(now[4])) {
+                continue;
+            }
+            double oldScore = Double.parseDouble(old[2]);
+            double newScore = Double.parseDouble(now[2]);
+            double errors = errorOf(old) + errorOf(now);
+            double change = (newScore - oldScore) / oldScore;
+            // Scores are times, so larger is slower
+            boolean slower = newScore - oldScore > errors && change > THRESHOLD;
+            regressed |= slower;
+            System.out.printf("%-40s %-40s %12.3f %12.3f %+7.1f%%%s%n", now[0], now[1],
+                    oldScore, newScore, 100 * change, slower ? "  REGRESSION" : "");
+        }
+        return regressed;
+    }
+
+    /** The error of ROW, or 0 if a single run gave none. */
+    private static double errorOf(String[] row) {
+        double error = Double.parseDouble(row[3]);
+        return Double.isNaN(error) ? 0 : error;
+    }
+}
@@ -0,0 +1,53 @@
+package gitlet;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmark of gitlet init, in a directory whose repository is removed
+ *  before each call.
+ *
+ *  @author yyy
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InitBenchmark {
+
+    private File gitletDir;
+
+    @Setup(Level.Trial)
+    public void createDir() {
+        gitletDir = Utils.join(SyntheticRepo.getDir(), ".gitlet");
+    }
+
+    @Setup(Level.Invocation)
+    public void removeRepository() {
+        SyntheticRepo.deleteTree(gitletDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDir() {
+        SyntheticRepo.delete();
+    }
+
+    @Benchmark
+    public void init() {
+        SyntheticRepo.gitlet("init");
+    }
+}
@@ -0,0 +1,147 @@
+package gitlet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks of the gitlet commands that work on an existing repository,
+ *  each run on a SyntheticRepo of the size given by the parameters.
+ *
+ *  Commands that change the repository are set up before each call so
+ *  that every call does the same work: add and commit always have one
+ *  changed file, checkout and reset alternate between two commits, and
+ *  merge starts from the same head of master every time.
+ *
+ *  @author yyy
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RepositoryBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int files;
+
+    @Param({"100"})
+    public int commits;
+
+    @Param({"4"})
+    public int branches;
+
+    @Param({"1024"})
+    public int fileSize;
+
+    private SyntheticRepo repo;
+
+    /** Which of two targets the next checkout or reset goes to. */
+    private boolean flip = false;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        repo = SyntheticRepo.create(files, commits, branches, fileSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        SyntheticRepo.delete();
+    }
+
+    /** A file changed in the working directory before each call. */
+    @State(Scope.Benchmark)
+    public static class ChangedFile {
+        private int next = 0;
+
+        String fileName;
+
+        @Setup(Level.Invocation)
+        public void change(RepositoryBenchmark bench) {
+            next = (next + 1) % bench.repo.getFiles();
+            bench.repo.writeFile(next);
+            fileName = bench.repo.fileName(next);
+        }
+    }
+
+    /** A file changed and staged before each call. */
+    @State(Scope.Benchmark)
+    public static class StagedFile {
+        private int next = 0;
+
+        @Setup(Level.Invocation)
+        public void stage(RepositoryBenchmark bench) {
+            next = (next + 1) % bench.repo.getFiles();
+            bench.repo.change(next);
+        }
+    }
+
+    /** Master put back at the head it had after generation before each
+     *  call, so every merge merges the same commits. */
+    @State(Scope.Benchmark)
+    public static class MasterReset {
+        @Setup(Level.Invocation)
+        public void reset(RepositoryBenchmark bench) {
+            SyntheticRepo.gitlet("reset", bench.repo.getMasterHead());
+        }
+    }
+
+    @Benchmark
+    public void add(ChangedFile file) {
+        SyntheticRepo.gitlet("add", file.fileName);
+    }
+
+    @Benchmark
+    public void commit(StagedFile file) {
+        SyntheticRepo.gitlet("commit", "benchmark commit");
+    }
+
+    @Benchmark
+    public void log() {
+        SyntheticRepo.gitlet("log");
+    }
+
+    @Benchmark
+    public void globalLog() {
+        SyntheticRepo.gitlet("global-log");
+    }
+
+    @Benchmark
+    public void find() {
+        SyntheticRepo.gitlet("find", "commit 4");
+    }
+
+    @Benchmark
+    public void status() {
+        SyntheticRepo.gitlet("status");
+    }
+
+    @Benchmark
+    public void checkout() {
+        flip = !flip;
+        SyntheticRepo.gitlet("checkout", flip ? SyntheticRepo.branchName(1) : "master");
+    }
+
+    @Benchmark
+    public void merge(MasterReset master) {
+        SyntheticRepo.gitlet("merge", SyntheticRepo.branchName(1));
+    }
+
+    @Benchmark
+    public void reset() {
+        flip = !flip;
+        SyntheticRepo.gitlet("reset", flip ? repo.getFirstCommit() : repo.getMasterHead());
+    }
+}
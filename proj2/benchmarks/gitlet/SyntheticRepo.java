@@ -0,0 +1,198 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/** A generated gitlet repository for the benchmarks to work on.
+ *
+ *  Gitlet finds its repository through the user.dir property, which it
+ *  reads once, when its classes are first loaded.  Every JMH fork is a
+ *  new JVM, so a repository is created in a fresh temporary directory and
+ *  user.dir pointed at it before any gitlet class is touched; there can
+ *  be only one repository per fork.
+ *
+ *  The history has COMMITS commits on master, each changing a few of
+ *  FILES files of about FILESIZE bytes of text, spread over directories
+ *  of DIR_SIZE files.  Then BRANCHES branches split off master, each with
+ *  one commit changing files no other branch changes, and master gets
+ *  one more such commit, so any branch merges into master cleanly.  The
+ *  contents come from a fixed seed, so every run works on the same
+ *  repository.
+ *
+ *  Commands go through Main.run, which reads the repository state, calls
+ *  the Repository method of the command and writes the state back, just
+ *  like a gitlet process does.  Their output is thrown away.
+ *
+ *  @author yyy
+ */
+class SyntheticRepo {
+
+    private static final int DIR_SIZE = 100;
+
+    private static final long SEED = 61;
+
+    /** Fraction of the files a commit of the generated history changes. */
+    private static final double CHANGED_PER_COMMIT = 0.01;
+
+    /** This fork's repository directory and repository, made lazily. */
+    private static File forkDir = null;
+    private static SyntheticRepo repo = null;
+
+    private final File dir;
+    private final int files;
+    private final int fileSize;
+    private final Random random = new Random(SEED);
+
+    /** The first commit with all files, and the head of master after the
+     *  history is generated. */
+    private String firstCommit;
+    private String masterHead;
+
+    private SyntheticRepo(File dir, int files, int fileSize) {
+        this.dir = dir;
+        this.files = files;
+        this.fileSize = fileSize;
+    }
+
+    /** Returns the directory of this fork's repository, which is created
+     *  but not initialized on first use. */
+    static File getDir() {
+        if (forkDir == null) {
+            try {
+                forkDir = Files.createTempDirectory("gitlet-bench").toFile();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot create repository directory", e);
+            }
+            System.setProperty("user.dir", forkDir.getPath());
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+        return forkDir;
+    }
+
+    /** Returns this fork's repository, generating it the first time. */
+    static SyntheticRepo create(int files, int commits, int branches, int fileSize) {
+        if (repo != null) {
+            return repo;
+        }
+        repo = new SyntheticRepo(getDir(), files, fileSize);
+        repo.generate(commits, branches);
+        return repo;
+    }
+
+    /** Runs the gitlet command ARGS in this fork's repository. */
+    static void gitlet(String... args) {
+        Main.run(args);
+    }
+
+    private void generate(int commits, int branches) {
+        gitlet("init");
+        for (int i = 0; i < files; i += 1) {
+            writeFile(i);
+            gitlet("add", fileName(i));
+        }
+        gitlet("commit", "commit 0");
+        firstCommit = Repository.branches.get("master");
+        int changed = Math.max(1, (int) (files * CHANGED_PER_COMMIT));
+        for (int c = 1; c < commits; c += 1) {
+            for (int k = 0; k < changed; k += 1) {
+                change(random.nextInt(files));
+            }
+            gitlet("commit", "commit " + c);
+        }
+        // Each branch changes its own slice of the files, and master one
+        // more, so merges are true merges rather than fast-forwards
+        for (int b = 1; b <= branches; b += 1) {
+            gitlet("branch", branchName(b));
+            gitlet("checkout", branchName(b));
+            for (int i = b - 1; i < files; i += (branches + 1) * DIR_SIZE) {
+                change(i);
+            }
+            gitlet("commit", "work on " + branchName(b));
+            gitlet("checkout", "master");
+        }
+        for (int i = branches; i < files; i += (branches + 1) * DIR_SIZE) {
+            change(i);
+        }
+        gitlet("commit", "work on master");
+        masterHead = Repository.branches.get("master");
+    }
+
+    static String branchName(int b) {
+        return "branch-" + b;
+    }
+
+    /** The path of file I, relative to the repository. */
+    String fileName(int i) {
+        return "d" + (i / DIR_SIZE) + "/f" + i + ".txt";
+    }
+
+    File getFile(int i) {
+        return Utils.join(dir, fileName(i));
+    }
+
+    int getFiles() {
+        return files;
+    }
+
+    String getFirstCommit() {
+        return firstCommit;
+    }
+
+    String getMasterHead() {
+        return masterHead;
+    }
+
+    /** Writes new contents into file I. */
+    void writeFile(int i) {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < fileSize) {
+            text.append("line ").append(random.nextInt(1000000)).append('\n');
+        }
+        File file = getFile(i);
+        file.getParentFile().mkdirs();
+        Utils.writeContents(file, text.toString());
+    }
+
+    /** Writes new contents into file I and stages them. */
+    void change(int i) {
+        writeFile(i);
+        gitlet("add", fileName(i));
+    }
+
+    /** Deletes this fork's repository directory and everything in it. */
+    static void delete() {
+        if (forkDir == null) {
+            return;
+        }
+        deleteTree(forkDir);
+        forkDir = null;
+        repo = null;
+    }
+
+    /** Deletes DIR and everything below it, if it exists. */
+    static void deleteTree(File dir) {
+        if (!dir.exists()) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            List<Path> all = new ArrayList<>();
+            paths.forEach(all::add);
+            // Deepest paths first, so directories are empty when reached
+            all.sort(Comparator.reverseOrder());
+            for (Path path: all) {
+                Files.delete(path);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot delete " + dir, e);
+        }
+    }
+}
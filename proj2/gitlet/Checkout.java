@@ -0,0 +1,112 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Turns the working directory from one commit into another.
+ *
+ *  The files to touch are found by comparing the tree of the index, which
+ *  is the old commit plus whatever was staged on top of it, with the tree
+ *  of the new commit, skipping every directory the two agree on.  A file
+ *  both agree on is only rewritten if its working copy was changed,
+ *  which the index tells from stat data alone for untouched files.  The
+ *  files that do need writing are copied out of the object store by a
+ *  small pool of worker threads, since checkout time is dominated by
+ *  waiting on the file system rather than by the CPU.
+ *
+ *  Callers are expected to have checked for untracked files in the way.
+ *
+ *  @author yyy
+ */
+class Checkout {
+
+    /** Upper bound on the number of files written at the same time. */
+    private static final int MAX_WORKERS = 8;
+
+    /** Updates DIR and INDEX, which currently hold a commit and possibly
+     *  staged changes, to hold exactly the files of NEWCOMMIT. */
+    static void apply(Commit newCommit, Index index, File dir) {
+        Set<String> changed = new TreeSet<>();
+        Tree.diff(index.getTree(), newCommit.getTree(), "", changed);
+        List<String> toWrite = new ArrayList<>();
+        List<String> toDelete = new ArrayList<>();
+        for (String fileName: changed) {
+            if (!newCommit.hasFile(fileName)) {
+                toDelete.add(fileName);
+            }
+        }
+        for (String fileName: newCommit.getFiles()) {
+            File workingFile = Utils.join(dir, fileName);
+            if (changed.contains(fileName) || !(workingFile.isFile()
+                    && newCommit.getFileHash(fileName).equals(index.getWorkingHash(workingFile)))) {
+                toWrite.add(fileName);
+            }
+        }
+
+        for (String fileName: toDelete) {
+            Utils.deleteWorkingFile(Utils.join(dir, fileName), dir);
+            index.remove(fileName);
+        }
+        List<String> hashes = new ArrayList<>();
+        for (String fileName: toWrite) {
+            hashes.add(newCommit.getFileHash(fileName));
+        }
+        ObjectStore.prefetchBlobs(hashes);
+        List<Index.Entry> stats = write(newCommit, toWrite, dir);
+        for (int i = 0; i < toWrite.size(); i += 1) {
+            String fileName = toWrite.get(i);
+            index.add(Utils.join(dir, fileName), newCommit.getFileHash(fileName), stats.get(i));
+        }
+        Trace.count(Trace.Counter.FILES_WRITTEN, toWrite.size());
+        Trace.count(Trace.Counter.FILES_DELETED, toDelete.size());
+    }
+
+    /** Writes the FILENAMES of COMMIT into DIR and returns the stat data of
+     *  each written file, in the same order. */
+    private static List<Index.Entry> write(Commit commit, List<String> fileNames, File dir) {
+        List<Index.Entry> stats = new ArrayList<>();
+        if (fileNames.size() <= 1) {
+            for (String fileName: fileNames) {
+                stats.add(writeFile(commit.getFileHash(fileName), Utils.join(dir, fileName)));
+            }
+            return stats;
+        }
+        int workers = Math.min(MAX_WORKERS, fileNames.size());
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Index.Entry>> results = new ArrayList<>();
+            for (String fileName: fileNames) {
+                String hash = commit.getFileHash(fileName);
+                File workingFile = Utils.join(dir, fileName);
+                results.add(pool.submit(() -> writeFile(hash, workingFile)));
+            }
+            for (Future<Index.Entry> result: results) {
+                stats.add(result.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Utils.error("Checkout interrupted.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw Utils.error("Checkout failed: %s", e.getCause().getMessage());
+        } finally {
+            pool.shutdownNow();
+        }
+        return stats;
+    }
+
+    /** Writes blob HASH to FILE and returns the stat data of FILE. */
+    private static Index.Entry writeFile(String hash, File file) {
+        ObjectStore.copyBlobTo(hash, file);
+        return Index.stat(file);
+    }
+}
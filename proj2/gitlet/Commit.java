@@ -1,23 +1,66 @@
 package gitlet;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.*;
 
 import static gitlet.Utils.join;
 
 /** Represents a gitlet commit object.
+ *
+ *  Commits are stored in a compact binary encoding (see encode) and their
+ *  id is the SHA-1 of that encoding, computed once and cached.  Files are
+ *  named by their path in the working directory, and a commit refers to
+ *  them through the Tree of its root directory, which is only flattened
+ *  into a list of files when one is asked for.  Commits of version 1 of
+ *  the encoding list their files directly.  Commits
+ *  written by older versions of gitlet are Java-serialized instances of
+ *  this class; they are still read, and keep the id they were stored
+ *  under, which is why this class stays Serializable.
  *
  *  @author yyy
  */
 public class Commit implements Serializable, Comparable {
 
+    /** Pinned to the value Java derived for the original class, so commits
+     *  written before any later change to this class still deserialize. */
+    private static final long serialVersionUID = 4730652612163989462L;
+
     public static final File GITLET_DIR = join(System.getProperty("user.dir"), ".gitlet");
     public static final File COMMIT_DIR = join(GITLET_DIR, "Commit");
 
+    public static final File TREE_DIR = join(GITLET_DIR, "Tree");
+
     public static final File BLOB_DIR = join(GITLET_DIR, "Blob");
 
+    /** "gCMT", the first word of an encoded commit. */
+    private static final int MAGIC = 0x67434D54;
+    private static final int VERSION = 2;
+
+    /** Number of decoded commits kept by getCommit. */
+    private static final int CACHE_SIZE = 1024;
+
+    /** The CACHE_SIZE most recently used commits by id, shared by every
+     *  operation of this process.  Commits in it are never changed. */
+    private static final LinkedHashMap<String, Commit> CACHE =
+        new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Commit> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+    /** Only set in commits read from the Java-serialized format, as
+     *  Date.toString() of their creation time. */
     private String dateCreated;
 
     private LinkedList<String> parentHashes = new LinkedList<>();
@@ -25,14 +68,30 @@ public class Commit implements Serializable, Comparable {
     /** The message of this Commit. */
     private String message;
 
+    /** The blob of each file, by path, or null until a commit known by
+     *  its tree is first asked for all its files. */
     private TreeMap<String, String> blobHashes = new TreeMap<>();
 
-    public Commit(String msg, String date, Commit... parents) {
+    /** The id of the root tree, or null if not known yet.  Reset whenever
+     *  the files of the commit change. */
+    private transient String treeHash;
+
+    /** The root tree once it has been read or built. */
+    private transient Tree tree;
+
+    /** Creation time in milliseconds since the epoch. */
+    private transient long timestamp;
+
+    /** The id of this commit, or null until it is first asked for.  Reset
+     *  whenever the commit is changed. */
+    private transient String hash;
+
+    public Commit(String msg, long timestamp, Commit... parents) {
         message = msg;
-        dateCreated = date;
+        this.timestamp = timestamp;
         if (parents != null) {
             for (Commit parent: parents) {
-                this.parentHashes.add(Utils.sha1(Utils.serialize(parent)));
+                this.parentHashes.add(parent.getHash());
             }
         }
     }
@@ -41,8 +100,8 @@ public class Commit implements Serializable, Comparable {
         return parentHashes;
     }
 
-    public String getDateCreated() {
-        return dateCreated;
+    public long getTimestamp() {
+        return timestamp;
     }
 
     public String getMessage() {
@@ -50,102 +109,235 @@ public class Commit implements Serializable, Comparable {
     }
 
     public String getHash() {
-        return Utils.sha1(Utils.serialize(this));
+        if (hash == null) {
+            hash = Utils.sha1(encode());
+        }
+        return hash;
     }
 
+    /** Returns a child of this commit with message MSG and the same
+     *  files.  It shares this commit's tree rather than copying its list
+     *  of files, and changing its files copies only what they touch. */
     public Commit makeCopy(String msg) {
-        Commit newCommit = new Commit(msg, (new Date()).toString(), this);
-        newCommit.blobHashes = (TreeMap<String, String>) blobHashes.clone();
+        Commit newCommit = new Commit(msg, System.currentTimeMillis(), this);
+        newCommit.tree = getTree();
+        newCommit.treeHash = treeHash;
+        newCommit.blobHashes = null;
         return newCommit;
     }
 
     public void addParentHash(String parentHash) {
         parentHashes.add(parentHash);
+        hash = null;
     }
 
-    public void addBlob(String fileName, String hash) {
-        blobHashes.put(fileName, hash);
+    public synchronized void addBlob(String fileName, String fileHash) {
+        setTree(getTree().with(fileName, fileHash));
     }
 
-    public boolean hasBlob(File file) {
-        String fileName = file.getName();
-        String fileHash = Utils.getFileHash(file);
-        return blobHashes.containsKey(fileName) && (blobHashes.get(fileName).equals(fileHash));
+    /** Whether this commit tracks FILENAME with contents hashing to FILEHASH. */
+    public boolean hasBlob(String fileName, String fileHash) {
+        return fileHash != null && fileHash.equals(getFileHash(fileName));
     }
 
-    public void removeBlob(String fileName) {
-        blobHashes.remove(fileName);
+    public synchronized void removeBlob(String fileName) {
+        setTree(getTree().without(fileName));
+    }
+
+    /** Makes TREE the files of this commit. */
+    private void setTree(Tree tree) {
+        this.tree = tree;
+        treeHash = null;
+        blobHashes = null;
+        hash = null;
     }
 
     public boolean hasFile(String fileName) {
-        return blobHashes.containsKey(fileName);
+        return getFileHash(fileName) != null;
     }
 
-    public String getFileHash(String fileName) {
-        if (hasFile(fileName)) {
+    /** Returns the blob of FILENAME in this commit, or null.  Unless all
+     *  files have been listed already, only the trees of the directories
+     *  above FILENAME are read. */
+    public synchronized String getFileHash(String fileName) {
+        if (blobHashes != null) {
             return blobHashes.get(fileName);
         }
-        return null;
+        return getTree().getFileHash(fileName);
     }
 
     public Set<String> getFiles() {
-        return new TreeSet(blobHashes.keySet());
+        return new TreeSet<>(getBlobHashes().keySet());
     }
 
-    public static Commit getCommit(String hash) {
-        if (hash != null) {
-            if (checkCommitExist(hash)) {
-                return Utils.readObject(getCommitFile(hash), Commit.class);
+    /** Returns the blob of each file of this commit by path. */
+    public Map<String, String> getFileHashes() {
+        return Collections.unmodifiableMap(getBlobHashes());
+    }
+
+    /** Returns the blob of each file by path, reading the trees of this
+     *  commit on first use. */
+    private synchronized TreeMap<String, String> getBlobHashes() {
+        if (blobHashes == null) {
+            TreeMap<String, String> files = new TreeMap<>();
+            getTree().flatten("", files);
+            blobHashes = files;
+        }
+        return blobHashes;
+    }
+
+    /** Returns the tree of the root directory of this commit. */
+    public synchronized Tree getTree() {
+        if (tree == null) {
+            tree = treeHash != null ? Tree.read(treeHash) : Tree.fromFiles(getBlobHashes());
+            treeHash = tree.getHash();
+        }
+        return tree;
+    }
+
+    /** Returns this commit encoded as: magic word, version, timestamp,
+     *  message, number of parents and their raw 20 byte ids, and the raw
+     *  id of its root tree.  Strings are written as a length followed by
+     *  their UTF-8 bytes. */
+    public byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(timestamp);
+            writeString(out, message);
+            out.writeByte(parentHashes.size());
+            for (String parentHash: parentHashes) {
+                out.write(Utils.fromHex(parentHash));
             }
+            out.write(Utils.fromHex(getTree().getHash()));
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw Utils.error("Internal error encoding commit.");
         }
-        return null;
     }
 
-    public static Commit getCommit(File file) {
-        if (file.exists()) {
-            return Utils.readObject(file, Commit.class);
+    /** Returns the commit stored as DATA under id HASH, in either the
+     *  encoding of encode or the old Java-serialized form. */
+    public static Commit decode(String hash, byte[] data) {
+        Trace.count(Trace.Counter.DECODED, 1);
+        Commit commit;
+        if (data.length >= 2 && (data[0] & 0xff) == 0xac && (data[1] & 0xff) == 0xed) {
+            commit = Utils.deserialize(data, Commit.class);
+            commit.timestamp = parseLegacyDate(commit.dateCreated);
         } else {
-            return null;
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+                int version = in.readInt() == MAGIC ? in.readByte() : -1;
+                if (version != 1 && version != VERSION) {
+                    throw Utils.error("Corrupt commit %s.", hash);
+                }
+                commit = new Commit(null, in.readLong());
+                commit.message = readString(in);
+                byte[] id = new byte[Utils.UID_LENGTH / 2];
+                for (int n = in.readByte(); n > 0; n -= 1) {
+                    in.readFully(id);
+                    commit.parentHashes.add(Utils.toHex(id));
+                }
+                if (version == VERSION) {
+                    in.readFully(id);
+                    commit.treeHash = Utils.toHex(id);
+                    commit.blobHashes = null;
+                } else {
+                    for (int n = in.readInt(); n > 0; n -= 1) {
+                        String fileName = readString(in);
+                        in.readFully(id);
+                        commit.blobHashes.put(fileName, Utils.toHex(id));
+                    }
+                }
+            } catch (IOException excp) {
+                throw Utils.error("Corrupt commit %s.", hash);
+            }
         }
+        commit.hash = hash;
+        return commit;
     }
 
-    public static void writeCommit(Commit commit) {
-        File commitFile = getCommitFile(commit.getHash());
-        Utils.writeObject(commitFile, commit);
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
     }
 
-    public static boolean checkCommitExist(String hash) {
-        return Utils.join(COMMIT_DIR, hash.substring(0, 2), hash.substring(2)).exists();
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 
-    public static String getCompleteCommitHash(String hash) {
-        int hashLength = hash.length();
-        File commitDir = Utils.join(COMMIT_DIR, hash.substring(0, 2));
-        List<String> commitHashes = Utils.plainFilenamesIn(commitDir);
-        if (commitHashes != null) {
-            for (String commitHash : commitHashes) {
-                if (commitHash.substring(0, hashLength-2).equals(hash.substring(2))) {
-                    return  hash.substring(0, 2) + commitHash;
-                }
+    /** Returns the time written by Date.toString() as DATE. */
+    private static long parseLegacyDate(String date) {
+        try {
+            return new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US).parse(date).getTime();
+        } catch (ParseException excp) {
+            throw Utils.error("Cannot read commit date %s.", date);
+        }
+    }
+
+    public static Commit getCommit(String hash) {
+        if (hash == null) {
+            return null;
+        }
+        synchronized (CACHE) {
+            Commit commit = CACHE.get(hash);
+            if (commit != null) {
+                Trace.count(Trace.Counter.CACHE_HITS, 1);
+                return commit;
             }
         }
-        return hash;
+        Trace.count(Trace.Counter.CACHE_MISSES, 1);
+        Commit commit;
+        try (Trace.Span span = Trace.begin("read commit")) {
+            byte[] data = ObjectStore.readCommit(hash);
+            if (data == null) {
+                return null;
+            }
+            commit = decode(hash, data);
+        }
+        synchronized (CACHE) {
+            CACHE.put(hash, commit);
+        }
+        return commit;
     }
 
-    public static File getCommitFile(String hash) {
-        File commitDir = Utils.join(COMMIT_DIR, hash.substring(0, 2));
-        if (!commitDir.exists()) {
-            commitDir.mkdirs();
+    public static void writeCommit(Commit commit) {
+        try (Trace.Span span = Trace.begin("write commit")) {
+            CommitGraph graph = CommitGraph.get();
+            CommitLog log = CommitLog.get();
+            commit.getTree().write();
+            byte[] data = commit.encode();
+            commit.hash = Utils.sha1(data);
+            ObjectStore.writeCommit(commit.hash, data);
+            graph.add(commit.hash, commit.getParentHashes());
+            log.add(commit.hash, commit);
+            synchronized (CACHE) {
+                CACHE.put(commit.hash, commit);
+            }
         }
-        return Utils.join(COMMIT_DIR, hash.substring(0, 2), hash.substring(2));
     }
 
-    public static File getBlobFile(String hash, String fileName) {
-        File blobDir = Utils.join(BLOB_DIR, hash.substring(0, 2), hash.substring(2));
-        if (!blobDir.exists()) {
-            blobDir.mkdirs();
+    public static boolean checkCommitExist(String hash) {
+        return ObjectStore.hasCommit(hash);
+    }
+
+    /** Returns the id of the one commit whose id starts with HASH.  Exits
+     *  with a message if HASH is the start of no id or of more than one. */
+    public static String getCompleteCommitHash(String hash) {
+        List<String> commitHashes = CommitIndex.get().find(hash, 2);
+        if (commitHashes.isEmpty()) {
+            Utils.exitWithMsg("No commit with that id exists.");
+        }
+        if (commitHashes.size() > 1) {
+            Utils.exitWithMsg("That commit id is ambiguous.");
         }
-        return Utils.join(blobDir, fileName);
+        return commitHashes.get(0);
     }
 
 
@@ -0,0 +1,378 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static gitlet.Utils.join;
+
+/** The shape of the commit history, kept apart from the commits so that
+ *  ancestry questions never have to read a commit.
+ *
+ *  Every commit gets a position, in the order commits were recorded, so
+ *  parents always come before their children.  For each position the
+ *  graph keeps the positions of the parents and the generation number:
+ *  1 for a root and one more than the largest generation of its parents
+ *  otherwise.  A commit can only be an ancestor of commits with a larger
+ *  generation, which bounds every walk.
+ *
+ *  GRAPH_FILE is a magic word and version followed by one record per
+ *  position: the 20 byte id, the generation, the number of parents and
+ *  their positions.  New commits are appended to it through the Journal.
+ *
+ *  @author yyy
+ */
+class CommitGraph {
+
+    public static final File GRAPH_FILE = join(Commit.GITLET_DIR, "COMMIT_GRAPH");
+
+    /** "gCGR", the first word of the graph file. */
+    private static final int MAGIC = 0x67434752;
+    private static final int VERSION = 1;
+
+    private static final int[] NO_PARENTS = new int[0];
+
+    /** Loaded lazily by get. */
+    private static CommitGraph graph = null;
+
+    /** Length of GRAPH_FILE as of the last read or write of this graph. */
+    private long fileLength;
+
+    private final List<String> ids = new ArrayList<>();
+    private final HashMap<String, Integer> positions = new HashMap<>();
+    private int[] generations = new int[16];
+    private int[][] parents = new int[16][];
+
+    /** Returns the commit graph of the repository, building and saving it
+     *  from the stored commits if it has never been written. */
+    static CommitGraph get() {
+        if (graph == null) {
+            try (Trace.Span span = Trace.begin("load commit graph")) {
+                graph = GRAPH_FILE.exists() ? read() : build(ObjectStore.allCommitHashes());
+            }
+        }
+        return graph;
+    }
+
+    /** Drops the loaded graph if another process has added to GRAPH_FILE
+     *  since it was read, for processes that run many commands. */
+    static void refresh() {
+        if (graph != null && graph.fileLength != GRAPH_FILE.length()) {
+            graph = null;
+        }
+    }
+
+    private static CommitGraph read() {
+        CommitGraph result = new CommitGraph();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(GRAPH_FILE.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw Utils.error("Corrupt commit graph.");
+            }
+            byte[] id = new byte[Utils.UID_LENGTH / 2];
+            while (true) {
+                try {
+                    in.readFully(id);
+                } catch (EOFException e) {
+                    break;
+                }
+                int generation = in.readInt();
+                int[] parentPositions = new int[in.readByte()];
+                for (int k = 0; k < parentPositions.length; k += 1) {
+                    parentPositions[k] = in.readInt();
+                }
+                result.append(Utils.toHex(id), generation, parentPositions);
+            }
+        } catch (IOException e) {
+            throw Utils.error("Cannot read commit graph.");
+        }
+        result.fileLength = GRAPH_FILE.length();
+        return result;
+    }
+
+    /** Replaces the graph, and GRAPH_FILE, by one of just the commits
+     *  HASHES, which must hold the parents of each that are stored. */
+    static void rebuild(Collection<String> hashes) {
+        graph = build(hashes);
+    }
+
+    /** Builds the graph of the stored commits HASHES and writes
+     *  GRAPH_FILE. */
+    private static CommitGraph build(Collection<String> hashes) {
+        CommitGraph result = new CommitGraph();
+        HashMap<String, List<String>> parentsOf = new HashMap<>();
+        for (String hash: hashes) {
+            parentsOf.put(hash, Shallow.getParents(hash, Commit.getCommit(hash)));
+        }
+        for (String hash: result.order(parentsOf)) {
+            result.record(hash, parentsOf.get(hash));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (int i = 0; i < result.ids.size(); i += 1) {
+                result.writeRecord(out, i);
+            }
+        } catch (IOException e) {
+            throw Utils.error("Cannot write commit graph.");
+        }
+        Journal.write(GRAPH_FILE, bytes.toByteArray());
+        result.fileLength = bytes.size();
+        return result;
+    }
+
+    /** Returns the commits of PARENTSOF, which maps each to its parents,
+     *  ordered so that every commit comes after those of its parents that
+     *  are not in this graph yet.  Every other parent must be in
+     *  PARENTSOF. */
+    private List<String> order(Map<String, List<String>> parentsOf) {
+        List<String> result = new ArrayList<>();
+        Set<String> done = new HashSet<>();
+        // Depth first, listing each commit after all of its parents
+        for (String start: parentsOf.keySet()) {
+            Deque<String> stack = new ArrayDeque<>();
+            stack.push(start);
+            while (!stack.isEmpty()) {
+                String hash = stack.peek();
+                if (contains(hash) || done.contains(hash)) {
+                    stack.pop();
+                    continue;
+                }
+                boolean ready = true;
+                for (String parentHash: parentsOf.get(hash)) {
+                    if (!contains(parentHash) && !done.contains(parentHash)) {
+                        stack.push(parentHash);
+                        ready = false;
+                    }
+                }
+                if (ready) {
+                    stack.pop();
+                    done.add(hash);
+                    result.add(hash);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void append(String hash, int generation, int[] parentPositions) {
+        int i = ids.size();
+        if (i == generations.length) {
+            generations = Arrays.copyOf(generations, 2 * i);
+            parents = Arrays.copyOf(parents, 2 * i);
+        }
+        ids.add(hash);
+        positions.put(hash, i);
+        generations[i] = generation;
+        parents[i] = parentPositions;
+    }
+
+    /** Adds commit HASH with PARENTHASHES, which must all be in the graph
+     *  already, in memory only. */
+    private void record(String hash, List<String> parentHashes) {
+        int[] parentPositions = parentHashes.isEmpty() ? NO_PARENTS : new int[parentHashes.size()];
+        int generation = 1;
+        for (int k = 0; k < parentPositions.length; k += 1) {
+            parentPositions[k] = positions.get(parentHashes.get(k));
+            generation = Math.max(generation, generations[parentPositions[k]] + 1);
+        }
+        append(hash, generation, parentPositions);
+    }
+
+    private void writeRecord(DataOutputStream out, int i) throws IOException {
+        out.write(Utils.fromHex(ids.get(i)));
+        out.writeInt(generations[i]);
+        out.writeByte(parents[i].length);
+        for (int parent: parents[i]) {
+            out.writeInt(parent);
+        }
+    }
+
+    /** Adds commit HASH with PARENTHASHES, which must all be in the graph
+     *  already, and appends it to GRAPH_FILE. */
+    void add(String hash, List<String> parentHashes) {
+        if (contains(hash)) {
+            return;
+        }
+        CommitIndex.get().add(hash);
+        record(hash, parentHashes);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeRecord(out, ids.size() - 1);
+        } catch (IOException e) {
+            throw Utils.error("Cannot write commit graph.");
+        }
+        fileLength = Journal.append(GRAPH_FILE, bytes.toByteArray());
+    }
+
+    /** Returns the ids of all commits, parents before children. */
+    List<String> getIds() {
+        return Collections.unmodifiableList(ids);
+    }
+
+    /** Adds every commit of PARENTSOF, which maps each to its parents,
+     *  parents first.  Parents missing from PARENTSOF must be in the graph
+     *  already. */
+    void addAll(Map<String, List<String>> parentsOf) {
+        for (String hash: order(parentsOf)) {
+            add(hash, parentsOf.get(hash));
+        }
+    }
+
+    List<String> getParents(String hash) {
+        List<String> result = new ArrayList<>();
+        for (int parent: parents[positions.get(hash)]) {
+            result.add(ids.get(parent));
+        }
+        return result;
+    }
+
+    /** Returns the commits that are WANT or its ancestors but neither one
+     *  of HAVES nor their ancestors, parents first.  HAVES not in the
+     *  graph are ignored.  Only commits fewer than DEPTH parent links from
+     *  WANT are returned; those of them with a parent that is neither
+     *  returned nor an ancestor of HAVES are added to BOUNDARY. */
+    List<String> missingFrom(String want, Collection<String> haves, int depth,
+                             Collection<String> boundary) {
+        boolean[] common = new boolean[ids.size()];
+        Deque<Integer> fringe = new ArrayDeque<>();
+        for (String have: haves) {
+            Integer i = positions.get(have);
+            if (i != null && !common[i]) {
+                common[i] = true;
+                fringe.push(i);
+            }
+        }
+        while (!fringe.isEmpty()) {
+            for (int parent: parents[fringe.pop()]) {
+                if (!common[parent]) {
+                    common[parent] = true;
+                    fringe.push(parent);
+                }
+            }
+        }
+        // Breadth first, so each commit is reached by its shortest path
+        HashMap<Integer, Integer> distances = new HashMap<>();
+        Integer start = positions.get(want);
+        if (start != null && !common[start] && depth > 0) {
+            distances.put(start, 0);
+            fringe.add(start);
+        }
+        while (!fringe.isEmpty()) {
+            int i = fringe.remove();
+            int distance = distances.get(i);
+            for (int parent: parents[i]) {
+                if (common[parent] || distances.containsKey(parent)) {
+                    continue;
+                }
+                if (distance + 1 < depth) {
+                    distances.put(parent, distance + 1);
+                    fringe.add(parent);
+                } else {
+                    boundary.add(ids.get(i));
+                }
+            }
+        }
+        List<String> result = new ArrayList<>();
+        for (int i: new TreeSet<>(distances.keySet())) {
+            result.add(ids.get(i));
+        }
+        return result;
+    }
+
+    boolean contains(String hash) {
+        return positions.containsKey(hash);
+    }
+
+    int getGeneration(String hash) {
+        return generations[positions.get(hash)];
+    }
+
+    /** Returns whether ANCESTOR is DESCENDANT or one of its ancestors.
+     *  The walk never goes below the generation of ANCESTOR. */
+    boolean isAncestor(String ancestor, String descendant) {
+        Integer target = positions.get(ancestor);
+        Integer start = positions.get(descendant);
+        if (target == null || start == null) {
+            return false;
+        }
+        int minGeneration = generations[target];
+        boolean[] marked = new boolean[ids.size()];
+        Deque<Integer> fringe = new ArrayDeque<>();
+        fringe.push(start);
+        marked[start] = true;
+        while (!fringe.isEmpty()) {
+            int i = fringe.pop();
+            if (i == target) {
+                return true;
+            }
+            for (int parent: parents[i]) {
+                if (!marked[parent] && generations[parent] >= minGeneration) {
+                    marked[parent] = true;
+                    fringe.push(parent);
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Returns the latest common ancestor of commits A and B, or null if
+     *  they share no history.
+     *
+     *  Walks down from both commits at once in decreasing generation,
+     *  marking each commit with the sides it is reachable from.  All the
+     *  descendants of a commit have larger generations, so by the time it
+     *  is reached its marks are final, and the first commit marked from
+     *  both sides is a common ancestor that no other common ancestor
+     *  descends from.  Nothing below its generation is ever visited. */
+    String mergeBase(String a, String b) {
+        final int sideA = 1;
+        final int sideB = 2;
+        Integer posA = positions.get(a);
+        Integer posB = positions.get(b);
+        if (posA == null || posB == null) {
+            return null;
+        }
+        int[] flags = new int[ids.size()];
+        PriorityQueue<Integer> fringe = new PriorityQueue<>((i, j) ->
+                Integer.compare(generations[j], generations[i]));
+        flags[posA] |= sideA;
+        flags[posB] |= sideB;
+        fringe.add(posA);
+        if (!posA.equals(posB)) {
+            fringe.add(posB);
+        }
+        while (!fringe.isEmpty()) {
+            int i = fringe.remove();
+            if (flags[i] == (sideA | sideB)) {
+                return ids.get(i);
+            }
+            for (int parent: parents[i]) {
+                if (flags[parent] == 0) {
+                    fringe.add(parent);
+                }
+                flags[parent] |= flags[i];
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,201 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import static gitlet.Utils.join;
+
+/** The ids of all commits, sorted, for finding a commit by a prefix of
+ *  its id.
+ *
+ *  INDEX_FILE is a magic word, a version and a count N, followed by N raw
+ *  20 byte ids in sorted order and then by the ids of commits added
+ *  since, in the order they were added.  It is mapped rather than read,
+ *  and a prefix is looked up by binary search over the sorted ids plus a
+ *  scan of the few added ones, so a lookup costs O(log n) however many
+ *  commits there are, and tells a unique prefix from an ambiguous one.
+ *
+ *  New ids are appended through the Journal, as the commit graph's are.
+ *  Once more than MAX_UNSORTED have piled up, the whole file is written
+ *  anew with all ids sorted, which keeps the scan short at the cost of
+ *  rewriting the file once every MAX_UNSORTED commits.
+ *
+ *  @author yyy
+ */
+class CommitIndex {
+
+    public static final File INDEX_FILE = join(Commit.GITLET_DIR, "COMMIT_IDS");
+
+    /** "gCID", the first word of the index file. */
+    private static final int MAGIC = 0x67434944;
+    private static final int VERSION = 1;
+    private static final int HEADER = 12;
+    private static final int ID_BYTES = Utils.UID_LENGTH / 2;
+
+    /** Most ids kept after the sorted ones before the file is sorted
+     *  again. */
+    private static final int MAX_UNSORTED = 1024;
+
+    /** Loaded lazily by get. */
+    private static CommitIndex index = null;
+
+    /** Length of INDEX_FILE as of the last read or write of this index. */
+    private long fileLength;
+
+    /** The contents of INDEX_FILE, mapped, or as last written. */
+    private ByteBuffer data;
+    private int sorted;
+
+    /** The ids after the sorted ones. */
+    private final List<String> unsorted = new ArrayList<>();
+
+    /** Returns the commit index of the repository, building and saving it
+     *  from the stored commits if it has never been written. */
+    static CommitIndex get() {
+        if (index == null) {
+            index = INDEX_FILE.exists() ? read() : build(ObjectStore.allCommitHashes());
+        }
+        return index;
+    }
+
+    /** Drops the loaded index if another process has changed INDEX_FILE
+     *  since it was read, for processes that run many commands. */
+    static void refresh() {
+        if (index != null && index.fileLength != INDEX_FILE.length()) {
+            index = null;
+        }
+    }
+
+    /** Replaces the index, and INDEX_FILE, by one of just the commits
+     *  HASHES. */
+    static void rebuild(Collection<String> hashes) {
+        index = build(hashes);
+    }
+
+    private static CommitIndex read() {
+        CommitIndex result = new CommitIndex();
+        result.data = Utils.map(INDEX_FILE);
+        if (result.data.limit() < HEADER || result.data.getInt(0) != MAGIC
+                || result.data.getInt(4) != VERSION) {
+            throw Utils.error("Corrupt commit index.");
+        }
+        result.sorted = result.data.getInt(8);
+        byte[] id = new byte[ID_BYTES];
+        for (int pos = HEADER + result.sorted * ID_BYTES; pos + ID_BYTES <= result.data.limit();
+             pos += ID_BYTES) {
+            result.data.get(pos, id);
+            result.unsorted.add(Utils.toHex(id));
+        }
+        result.fileLength = INDEX_FILE.length();
+        return result;
+    }
+
+    /** Builds the index of the commits HASHES and writes INDEX_FILE. */
+    private static CommitIndex build(Collection<String> hashes) {
+        TreeSet<String> ids = new TreeSet<>(hashes);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(ids.size());
+            for (String id: ids) {
+                out.write(Utils.fromHex(id));
+            }
+        } catch (IOException e) {
+            throw Utils.error("Cannot write commit index.");
+        }
+        Journal.write(INDEX_FILE, bytes.toByteArray());
+        CommitIndex result = new CommitIndex();
+        result.data = ByteBuffer.wrap(bytes.toByteArray()).asReadOnlyBuffer();
+        result.sorted = ids.size();
+        result.fileLength = bytes.size();
+        return result;
+    }
+
+    /** Adds commit HASH, unless it is here already. */
+    void add(String hash) {
+        if (!find(hash, 1).isEmpty()) {
+            return;
+        }
+        unsorted.add(hash);
+        if (unsorted.size() > MAX_UNSORTED) {
+            index = build(getAll());
+        } else {
+            fileLength = Journal.append(INDEX_FILE, Utils.fromHex(hash));
+        }
+    }
+
+    /** Returns every id of this index. */
+    private List<String> getAll() {
+        List<String> ids = new ArrayList<>(unsorted);
+        for (int i = 0; i < sorted; i += 1) {
+            ids.add(getId(i));
+        }
+        return ids;
+    }
+
+    private String getId(int i) {
+        byte[] id = new byte[ID_BYTES];
+        data.get(HEADER + i * ID_BYTES, id);
+        return Utils.toHex(id);
+    }
+
+    /** Returns up to LIMIT ids starting with PREFIX, a string of hex
+     *  digits of any length.  The sorted ids starting with PREFIX are
+     *  those from PREFIX padded with 0s to PREFIX padded with fs, so the
+     *  first is found by binary search whether PREFIX ends within a byte
+     *  or not, and no id past the last is looked at. */
+    List<String> find(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        if (!prefix.matches("[0-9a-f]*") || prefix.length() > Utils.UID_LENGTH) {
+            return result;
+        }
+        String padding = "0".repeat(Utils.UID_LENGTH - prefix.length());
+        byte[] low = Utils.fromHex(prefix + padding);
+        byte[] high = Utils.fromHex(prefix + padding.replace('0', 'f'));
+        for (int i = lowerBound(low); i < sorted && result.size() < limit
+                 && compareId(i, high) <= 0; i += 1) {
+            result.add(getId(i));
+        }
+        for (String id: unsorted) {
+            if (result.size() < limit && id.startsWith(prefix) && !result.contains(id)) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /** Compare sorted id I with the raw id ID. */
+    private int compareId(int i, byte[] id) {
+        int base = HEADER + i * ID_BYTES;
+        for (int k = 0; k < id.length; k += 1) {
+            int cmp = Integer.compare(data.get(base + k) & 0xff, id[k] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /** Returns the position of the first sorted id not less than ID. */
+    private int lowerBound(byte[] id) {
+        int lo = 0;
+        int hi = sorted;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareId(mid, id) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,253 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import static gitlet.Utils.join;
+
+/** The id, time, parents and message of every commit, kept in one file
+ *  so that global-log and find never have to open a commit.
+ *
+ *  LOG_FILE is a magic word and version followed by one record per
+ *  commit, in the order commits were written: the 20 byte id, the
+ *  timestamp, the number of parents and their ids, and the length and
+ *  UTF-8 bytes of the message.  New commits are appended to it through
+ *  the Journal.
+ *
+ *  Once read, messages are also indexed by trigram, every run of three
+ *  characters in them, so find only checks the commits whose messages
+ *  hold every trigram of the text it looks for.
+ *
+ *  @author yyy
+ */
+class CommitLog {
+
+    public static final File LOG_FILE = join(Commit.GITLET_DIR, "COMMIT_LOG");
+
+    /** "gCLG", the first word of the log file. */
+    private static final int MAGIC = 0x67434C47;
+    private static final int VERSION = 1;
+
+    private static final int GRAM = 3;
+
+    /** Loaded lazily by get. */
+    private static CommitLog log = null;
+
+    /** What the log knows of one commit. */
+    static class Entry {
+        private final String hash;
+        private final long timestamp;
+        private final List<String> parentHashes;
+        private final String message;
+
+        Entry(String hash, long timestamp, List<String> parentHashes, String message) {
+            this.hash = hash;
+            this.timestamp = timestamp;
+            this.parentHashes = parentHashes;
+            this.message = message;
+        }
+
+        String getHash() {
+            return hash;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        List<String> getParentHashes() {
+            return parentHashes;
+        }
+
+        String getMessage() {
+            return message;
+        }
+    }
+
+    /** Length of LOG_FILE as of the last read or write of this log. */
+    private long fileLength;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final HashSet<String> hashes = new HashSet<>();
+
+    /** The positions in ENTRIES of the messages holding each trigram. */
+    private final HashMap<String, List<Integer>> trigrams = new HashMap<>();
+
+    /** Returns the commit log of the repository, building and saving it
+     *  from the stored commits if it has never been written. */
+    static CommitLog get() {
+        if (log == null) {
+            try (Trace.Span span = Trace.begin("load commit log")) {
+                log = LOG_FILE.exists() ? read() : build(ObjectStore.allCommitHashes());
+            }
+        }
+        return log;
+    }
+
+    /** Drops the loaded log if another process has added to LOG_FILE
+     *  since it was read, for processes that run many commands. */
+    static void refresh() {
+        if (log != null && log.fileLength != LOG_FILE.length()) {
+            log = null;
+        }
+    }
+
+    private static CommitLog read() {
+        CommitLog result = new CommitLog();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(LOG_FILE.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw Utils.error("Corrupt commit log.");
+            }
+            byte[] id = new byte[Utils.UID_LENGTH / 2];
+            while (true) {
+                try {
+                    in.readFully(id);
+                } catch (EOFException e) {
+                    break;
+                }
+                String hash = Utils.toHex(id);
+                long timestamp = in.readLong();
+                List<String> parentHashes = new ArrayList<>();
+                for (int k = in.readByte(); k > 0; k -= 1) {
+                    in.readFully(id);
+                    parentHashes.add(Utils.toHex(id));
+                }
+                byte[] message = new byte[in.readInt()];
+                in.readFully(message);
+                result.append(new Entry(hash, timestamp, parentHashes,
+                        new String(message, StandardCharsets.UTF_8)));
+            }
+        } catch (IOException e) {
+            throw Utils.error("Cannot read commit log.");
+        }
+        result.fileLength = LOG_FILE.length();
+        return result;
+    }
+
+    /** Replaces the log, and LOG_FILE, by one of just the commits
+     *  HASHES. */
+    static void rebuild(Collection<String> hashes) {
+        log = build(hashes);
+    }
+
+    /** Builds the log of the stored commits HASHES and writes LOG_FILE. */
+    private static CommitLog build(Collection<String> hashes) {
+        CommitLog result = new CommitLog();
+        for (String hash: hashes) {
+            Commit commit = Commit.getCommit(hash);
+            result.append(new Entry(hash, commit.getTimestamp(),
+                    commit.getParentHashes(), commit.getMessage()));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Entry entry: result.entries) {
+                writeRecord(out, entry);
+            }
+        } catch (IOException e) {
+            throw Utils.error("Cannot write commit log.");
+        }
+        Journal.write(LOG_FILE, bytes.toByteArray());
+        result.fileLength = bytes.size();
+        return result;
+    }
+
+    private void append(Entry entry) {
+        int i = entries.size();
+        entries.add(entry);
+        hashes.add(entry.hash);
+        String message = entry.message;
+        for (int k = 0; k + GRAM <= message.length(); k += 1) {
+            List<Integer> positions = trigrams.computeIfAbsent(
+                    message.substring(k, k + GRAM), gram -> new ArrayList<>());
+            // A message holding a trigram twice is listed once
+            if (positions.isEmpty() || positions.get(positions.size() - 1) != i) {
+                positions.add(i);
+            }
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, Entry entry) throws IOException {
+        out.write(Utils.fromHex(entry.hash));
+        out.writeLong(entry.timestamp);
+        out.writeByte(entry.parentHashes.size());
+        for (String parentHash: entry.parentHashes) {
+            out.write(Utils.fromHex(parentHash));
+        }
+        byte[] message = entry.message.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(message.length);
+        out.write(message);
+    }
+
+    /** Adds COMMIT, whose id is HASH, and appends it to LOG_FILE. */
+    void add(String hash, Commit commit) {
+        if (hashes.contains(hash)) {
+            return;
+        }
+        Entry entry = new Entry(hash, commit.getTimestamp(),
+                new ArrayList<>(commit.getParentHashes()), commit.getMessage());
+        append(entry);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeRecord(out, entry);
+        } catch (IOException e) {
+            throw Utils.error("Cannot write commit log.");
+        }
+        fileLength = Journal.append(LOG_FILE, bytes.toByteArray());
+    }
+
+    /** Returns every commit, sorted by id. */
+    List<Entry> all() {
+        List<Entry> result = new ArrayList<>(entries);
+        result.sort(Comparator.comparing(Entry::getHash));
+        return result;
+    }
+
+    /** Returns the ids of the commits whose message contains TEXT, sorted.
+     *  Only the commits listed under the rarest trigram of TEXT are
+     *  checked; TEXT shorter than a trigram is checked against them all. */
+    List<String> find(String text) {
+        List<Integer> candidates = null;
+        for (int k = 0; k + GRAM <= text.length(); k += 1) {
+            List<Integer> positions = trigrams.get(text.substring(k, k + GRAM));
+            if (positions == null) {
+                return Collections.emptyList();
+            }
+            if (candidates == null || positions.size() < candidates.size()) {
+                candidates = positions;
+            }
+        }
+        List<String> result = new ArrayList<>();
+        if (candidates == null) {
+            for (Entry entry: entries) {
+                if (entry.message.contains(text)) {
+                    result.add(entry.hash);
+                }
+            }
+        } else {
+            for (int i: candidates) {
+                if (entries.get(i).message.contains(text)) {
+                    result.add(entries.get(i).hash);
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+}
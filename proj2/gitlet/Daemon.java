@@ -0,0 +1,211 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static gitlet.Utils.join;
+
+/** A long-running gitlet process that runs commands on behalf of
+ *  short-lived clients, so commits, packs and the commit graph stay
+ *  loaded between commands.
+ *
+ *  "gitlet daemon" listens on the Unix domain socket SOCKET_FILE and runs
+ *  one command at a time.  A client sends the number of arguments and
+ *  then each argument as a length and its UTF-8 bytes.  The daemon
+ *  answers with the exit status, then the length and bytes of the
+ *  command's standard output, then the same for its standard error, which
+ *  are exactly what running the command directly would have printed.
+ *  Any program speaking this protocol can be a client; Main.main is one.
+ *  "gitlet daemon stop" makes a running daemon exit.
+ *
+ *  The daemon reports the time taken by each command on its own standard
+ *  error.
+ *
+ *  @author yyy
+ */
+class Daemon {
+
+    public static final File SOCKET_FILE = join(Commit.GITLET_DIR, "daemon.sock");
+
+    /** Set by "daemon stop" to end serve after the current reply. */
+    private static boolean stopping = false;
+
+    /** Runs ARGS on a daemon serving this repository and prints its
+     *  output.  Returns false, having done nothing, if no daemon is
+     *  running or ARGS starts a daemon. */
+    static boolean forward(String[] args) {
+        if (args.length == 1 && args[0].equals("daemon")) {
+            return false;
+        }
+        if (!SOCKET_FILE.exists()) {
+            return false;
+        }
+        Reply reply;
+        try {
+            reply = call(SOCKET_FILE, args);
+        } catch (IOException e) {
+            // A daemon that died without cleaning up: run the command here
+            return false;
+        }
+        System.out.write(reply.out, 0, reply.out.length);
+        System.out.flush();
+        System.err.write(reply.err, 0, reply.err.length);
+        System.err.flush();
+        if (reply.status != 0) {
+            System.exit(reply.status);
+        }
+        return true;
+    }
+
+    /** What a daemon answered to one command. */
+    static class Reply {
+        final int status;
+        final byte[] out;
+        final byte[] err;
+
+        Reply(int status, byte[] out, byte[] err) {
+            this.status = status;
+            this.out = out;
+            this.err = err;
+        }
+    }
+
+    /** Runs ARGS on the daemon listening on SOCKET, which may serve
+     *  another repository, and returns its reply. */
+    static Reply call(File socket, String[] args) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(
+                UnixDomainSocketAddress.of(socket.toPath()))) {
+            DataOutputStream request = new DataOutputStream(Channels.newOutputStream(channel));
+            request.writeInt(args.length);
+            for (String arg: args) {
+                writeBytes(request, arg.getBytes(StandardCharsets.UTF_8));
+            }
+            request.flush();
+            DataInputStream reply = new DataInputStream(Channels.newInputStream(channel));
+            int status = reply.readInt();
+            byte[] out = readBytes(reply);
+            byte[] err = readBytes(reply);
+            return new Reply(status, out, err);
+        }
+    }
+
+    /** Serves commands until stopped. */
+    static void serve() {
+        if (SOCKET_FILE.exists()) {
+            try (SocketChannel channel = SocketChannel.open(
+                    UnixDomainSocketAddress.of(SOCKET_FILE.toPath()))) {
+                Utils.exitWithMsg("A daemon is already running.");
+            } catch (IOException e) {
+                SOCKET_FILE.delete();
+            }
+        }
+        PrintStream log = System.err;
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(SOCKET_FILE.toPath()));
+            Runtime.getRuntime().addShutdownHook(new Thread(SOCKET_FILE::delete));
+            log.printf("daemon: listening on %s%n", SOCKET_FILE);
+            stopping = false;
+            while (!stopping) {
+                try (SocketChannel channel = server.accept()) {
+                    handle(channel, log);
+                } catch (EOFException e) {
+                    // A client that hung up without a command, such as a
+                    // second daemon checking for this one
+                } catch (IOException e) {
+                    log.printf("daemon: lost client: %s%n", e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            throw Utils.error("Cannot listen on %s.", SOCKET_FILE.getName());
+        } finally {
+            SOCKET_FILE.delete();
+        }
+    }
+
+    /** Reads one command from CHANNEL, runs it and sends back its output,
+     *  logging how long it took to LOG. */
+    private static void handle(SocketChannel channel, PrintStream log) throws IOException {
+        DataInputStream request = new DataInputStream(Channels.newInputStream(channel));
+        String[] args = new String[request.readInt()];
+        for (int i = 0; i < args.length; i += 1) {
+            args[i] = new String(readBytes(request), StandardCharsets.UTF_8);
+        }
+
+        long start = System.nanoTime();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        PrintStream oldOut = System.out;
+        PrintStream oldErr = System.err;
+        int status = 0;
+        System.setOut(new PrintStream(out, true, Charset.defaultCharset()));
+        System.setErr(new PrintStream(err, true, Charset.defaultCharset()));
+        try {
+            if (args.length == 2 && args[0].equals("daemon") && args[1].equals("stop")) {
+                stopping = true;
+            } else {
+                Main.run(args);
+            }
+        } catch (RuntimeException e) {
+            trimStackTrace(e);
+            System.err.print("Exception in thread \"main\" ");
+            e.printStackTrace();
+            status = 1;
+        } finally {
+            System.out.flush();
+            System.err.flush();
+            System.setOut(oldOut);
+            System.setErr(oldErr);
+        }
+        log.printf("daemon: %s: %.3f ms%n", String.join(" ", args),
+                (System.nanoTime() - start) / 1e6);
+
+        DataOutputStream reply = new DataOutputStream(Channels.newOutputStream(channel));
+        reply.writeInt(status);
+        writeBytes(reply, out.toByteArray());
+        writeBytes(reply, err.toByteArray());
+        reply.flush();
+    }
+
+    /** Cuts the frames of the daemon out of the stack traces of E and its
+     *  causes, leaving them as they would be had the command run in a
+     *  process of its own: the frames of the command, then Main.main,
+     *  which is also the bottom frame of the daemon. */
+    private static void trimStackTrace(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            StackTraceElement[] frames = t.getStackTrace();
+            for (int i = 0; i < frames.length; i += 1) {
+                if (frames[i].getClassName().equals(Daemon.class.getName())
+                        && frames[i].getMethodName().equals("handle")) {
+                    StackTraceElement[] trimmed = Arrays.copyOf(frames, i + 1);
+                    trimmed[i] = frames[frames.length - 1];
+                    t.setStackTrace(trimmed);
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,151 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/** Byte-level deltas: a description of one byte array in terms of pieces
+ *  of another.
+ *
+ *  The base is cut into blocks of BLOCK bytes, each indexed by a rolling
+ *  hash.  The target is then scanned with the same hash over a window of
+ *  BLOCK bytes, sliding one byte at a time, so a block of the base is
+ *  found wherever it appears in the target, aligned or not.  Each match is
+ *  grown as far as the bytes agree in both directions and becomes a COPY
+ *  of a range of the base; whatever lies between matches is sent as an
+ *  INSERT of literal bytes.
+ *
+ *  A delta is the length of the target followed by its instructions.
+ *
+ *  @author yyy
+ */
+class Delta {
+
+    private static final int BLOCK = 16;
+
+    /** Multiplier of the rolling hash, which is computed modulo 2^32. */
+    private static final int PRIME = 0x01000193;
+
+    private static final int COPY = 0;
+    private static final int INSERT = 1;
+
+    /** PRIME ** (BLOCK - 1), to take the oldest byte out of the hash. */
+    private static final int TOP;
+
+    static {
+        int top = 1;
+        for (int k = 1; k < BLOCK; k += 1) {
+            top *= PRIME;
+        }
+        TOP = top;
+    }
+
+    private static int hash(byte[] data, int start) {
+        int h = 0;
+        for (int k = start; k < start + BLOCK; k += 1) {
+            h = h * PRIME + (data[k] & 0xff);
+        }
+        return h;
+    }
+
+    /** Returns a delta that turns BASE into TARGET. */
+    static byte[] create(byte[] base, byte[] target) {
+        HashMap<Integer, Integer> blocks = new HashMap<>();
+        for (int k = 0; k + BLOCK <= base.length; k += BLOCK) {
+            blocks.putIfAbsent(hash(base, k), k);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeLong(target.length);
+            int literalStart = 0;
+            int i = 0;
+            int h = target.length >= BLOCK ? hash(target, 0) : 0;
+            while (i + BLOCK <= target.length) {
+                Integer match = blocks.get(h);
+                if (match != null && sameBytes(base, match, target, i, BLOCK)) {
+                    int baseStart = match;
+                    int targetStart = i;
+                    while (baseStart > 0 && targetStart > literalStart
+                            && base[baseStart - 1] == target[targetStart - 1]) {
+                        baseStart -= 1;
+                        targetStart -= 1;
+                    }
+                    int end = i + BLOCK;
+                    int baseEnd = match + BLOCK;
+                    while (end < target.length && baseEnd < base.length
+                            && base[baseEnd] == target[end]) {
+                        end += 1;
+                        baseEnd += 1;
+                    }
+                    writeInsert(out, target, literalStart, targetStart);
+                    out.writeByte(COPY);
+                    out.writeInt(baseStart);
+                    out.writeInt(end - targetStart);
+                    literalStart = end;
+                    i = end;
+                    if (i + BLOCK <= target.length) {
+                        h = hash(target, i);
+                    }
+                    continue;
+                }
+                if (i + BLOCK < target.length) {
+                    h = (h - (target[i] & 0xff) * TOP) * PRIME + (target[i + BLOCK] & 0xff);
+                }
+                i += 1;
+            }
+            writeInsert(out, target, literalStart, target.length);
+            out.flush();
+        } catch (IOException e) {
+            throw Utils.error("Cannot encode delta.");
+        }
+        return bytes.toByteArray();
+    }
+
+    private static boolean sameBytes(byte[] a, int aStart, byte[] b, int bStart, int length) {
+        for (int k = 0; k < length; k += 1) {
+            if (a[aStart + k] != b[bStart + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeInsert(DataOutputStream out, byte[] data, int start, int end)
+            throws IOException {
+        if (end > start) {
+            out.writeByte(INSERT);
+            out.writeInt(end - start);
+            out.write(data, start, end - start);
+        }
+    }
+
+    /** Returns the target of DELTA, which was made against BASE. */
+    static byte[] apply(byte[] base, byte[] delta) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta))) {
+            byte[] target = new byte[(int) in.readLong()];
+            int pos = 0;
+            while (pos < target.length) {
+                int op = in.readByte();
+                if (op == COPY) {
+                    int start = in.readInt();
+                    int length = in.readInt();
+                    System.arraycopy(base, start, target, pos, length);
+                    pos += length;
+                } else if (op == INSERT) {
+                    int length = in.readInt();
+                    in.readFully(target, pos, length);
+                    pos += length;
+                } else {
+                    throw Utils.error("Corrupt delta.");
+                }
+            }
+            return target;
+        } catch (IOException | IndexOutOfBoundsException e) {
+            throw Utils.error("Corrupt delta.");
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package gitlet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/** Line-level differences between two texts, found with Myers' O(ND)
+ *  algorithm.
+ *
+ *  Lines are numbered from 0 and keep their line terminators, so joining
+ *  the lines of a text gives back the text.  They are views of the bytes
+ *  of the text, which may be a mapped file, so no line is copied and
+ *  lines compare and hash by their bytes.  Before searching, lines are
+ *  replaced by small integers, equal lines by equal integers, and the
+ *  common leading and trailing lines are set aside, so the search only
+ *  covers the part of the texts that actually differs.
+ *
+ *  @author yyy
+ */
+class Diff {
+
+    /** Lines A[aStart, aEnd) are replaced by B[bStart, bEnd).  Either
+     *  range may be empty. */
+    static class Hunk {
+        final int aStart;
+        final int aEnd;
+        final int bStart;
+        final int bEnd;
+
+        Hunk(int aStart, int aEnd, int bStart, int bEnd) {
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+        }
+    }
+
+    /** Returns views of the lines of the remaining bytes of TEXT, each
+     *  with its terminating newline.  The last line has none if TEXT does
+     *  not end with one. */
+    static List<ByteBuffer> lines(ByteBuffer text) {
+        List<ByteBuffer> result = new ArrayList<>();
+        int start = text.position();
+        int limit = text.limit();
+        for (int k = start; k < limit; k += 1) {
+            if (text.get(k) == '\n') {
+                result.add(text.slice(start, k + 1 - start));
+                start = k + 1;
+            }
+        }
+        if (start < limit) {
+            result.add(text.slice(start, limit - start));
+        }
+        return result;
+    }
+
+    /** Returns the hunks turning A into B, in increasing order and with no
+     *  two touching. */
+    static <T> List<Hunk> diff(List<T> a, List<T> b) {
+        HashMap<T, Integer> ids = new HashMap<>();
+        int[] x = intern(a, ids);
+        int[] y = intern(b, ids);
+        int prefix = 0;
+        while (prefix < x.length && prefix < y.length && x[prefix] == y[prefix]) {
+            prefix += 1;
+        }
+        int suffix = 0;
+        while (suffix < x.length - prefix && suffix < y.length - prefix
+                && x[x.length - 1 - suffix] == y[y.length - 1 - suffix]) {
+            suffix += 1;
+        }
+        boolean[] deleted = new boolean[x.length];
+        boolean[] inserted = new boolean[y.length];
+        mark(x, prefix, x.length - suffix, y, prefix, y.length - suffix, deleted, inserted);
+
+        List<Hunk> hunks = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < x.length || j < y.length) {
+            if (i < x.length && j < y.length && !deleted[i] && !inserted[j]) {
+                i += 1;
+                j += 1;
+                continue;
+            }
+            int aStart = i;
+            int bStart = j;
+            while (i < x.length && deleted[i]) {
+                i += 1;
+            }
+            while (j < y.length && inserted[j]) {
+                j += 1;
+            }
+            hunks.add(new Hunk(aStart, i, bStart, j));
+        }
+        return hunks;
+    }
+
+    private static <T> int[] intern(List<T> lines, HashMap<T, Integer> ids) {
+        int[] result = new int[lines.size()];
+        for (int i = 0; i < result.length; i += 1) {
+            Integer id = ids.get(lines.get(i));
+            if (id == null) {
+                id = ids.size();
+                ids.put(lines.get(i), id);
+            }
+            result[i] = id;
+        }
+        return result;
+    }
+
+    /** Finds a shortest edit script turning X[xLo, xHi) into Y[yLo, yHi)
+     *  and marks the lines it deletes from X in DELETED and the lines it
+     *  inserts from Y in INSERTED.
+     *
+     *  V[k] is the furthest x reached on diagonal k = x - y after D edits.
+     *  The V of every D is kept so that the path can be walked back from
+     *  the end once it is reached. */
+    private static void mark(int[] x, int xLo, int xHi, int[] y, int yLo, int yHi,
+                             boolean[] deleted, boolean[] inserted) {
+        int n = xHi - xLo;
+        int m = yHi - yLo;
+        if (n == 0 || m == 0) {
+            Arrays.fill(deleted, xLo, xHi, true);
+            Arrays.fill(inserted, yLo, yHi, true);
+            return;
+        }
+        int max = n + m;
+        int offset = max + 1;
+        int[] v = new int[2 * max + 3];
+        List<int[]> trace = new ArrayList<>();
+        int last = -1;
+        for (int d = 0; d <= max && last < 0; d += 1) {
+            trace.add(Arrays.copyOfRange(v, offset - d - 1, offset + d + 2));
+            for (int k = -d; k <= d; k += 2) {
+                int i;
+                if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) {
+                    i = v[offset + k + 1];
+                } else {
+                    i = v[offset + k - 1] + 1;
+                }
+                int j = i - k;
+                while (i < n && j < m && x[xLo + i] == y[yLo + j]) {
+                    i += 1;
+                    j += 1;
+                }
+                v[offset + k] = i;
+                if (i >= n && j >= m) {
+                    last = d;
+                    break;
+                }
+            }
+        }
+
+        // Walk back from (n, m), one edit per D
+        int i = n;
+        int j = m;
+        for (int d = last; d > 0; d -= 1) {
+            int[] prev = trace.get(d);
+            int k = i - j;
+            int prevK;
+            // PREV holds V before step D, for diagonals -D - 1 to D + 1
+            if (k == -d || (k != d && prev[k - 1 + d + 1] < prev[k + 1 + d + 1])) {
+                prevK = k + 1;
+            } else {
+                prevK = k - 1;
+            }
+            int prevI = prev[prevK + d + 1];
+            int prevJ = prevI - prevK;
+            // The lines between the edit and (I, J) are a run of equal lines
+            if (prevK == k + 1) {
+                inserted[yLo + prevJ] = true;
+            } else {
+                deleted[xLo + prevI] = true;
+            }
+            i = prevI;
+            j = prevJ;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package gitlet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Garbage collection of objects no branch can reach any more.
+ *
+ *  rm-branch and reset leave commits, and the trees and blobs only they
+ *  hold, behind in the object store.  gc marks every object reachable
+ *  from a branch, remote branches included, or staged in the index, and
+ *  repacks the store keeping only those.
+ *
+ *  The commits are marked by walking the commit graph from the branch
+ *  heads, which needs no object to be read.  Their trees are then marked
+ *  in parallel on a ForkJoinPool, a task per tree; a tree shared by many
+ *  commits or directories is claimed, and looked into, by the first task
+ *  to reach it.  Blobs are marked from the trees holding them without
+ *  being read, so the blobs a partial clone left out cost nothing, and a
+ *  shallow clone's history simply stops at its boundary commits.
+ *
+ *  The commit graph, log and index are rebuilt from the reachable
+ *  commits, and committed, before anything is deleted, so that a gc that
+ *  is killed halfway never leaves them naming a commit that is gone.
+ *
+ *  @author yyy
+ */
+class Gc {
+
+    /** Marks and sweeps the repository, or with DRYRUN only reports what a
+     *  sweep would remove. */
+    static void run(boolean dryRun) {
+        long start = System.nanoTime();
+        Set<String> commits = markCommits();
+        Set<String> reachable = ConcurrentHashMap.newKeySet();
+        reachable.addAll(commits);
+        try (Trace.Span span = Trace.begin("mark trees")) {
+            markTrees(commits, reachable);
+        }
+        Index index = Repository.getIndex();
+        for (String fileName: index.getFiles()) {
+            reachable.add(index.getHash(fileName));
+        }
+        long count = 0;
+        long bytes = 0;
+        for (Map.Entry<String, Long> object: ObjectStore.storedSizes().entrySet()) {
+            if (!reachable.contains(object.getKey())) {
+                count += 1;
+                bytes += object.getValue();
+            }
+        }
+        if (dryRun) {
+            System.out.printf("Would remove %d unreachable objects, %s.", count,
+                    Utils.formatBytes(bytes));
+            return;
+        }
+        CommitGraph.rebuild(commits);
+        CommitLog.rebuild(commits);
+        CommitIndex.rebuild(commits);
+        Journal.commit();
+        try (Trace.Span span = Trace.begin("repack")) {
+            ObjectStore.repack(new HashSet<>(reachable));
+        }
+        System.out.printf("Removed %d unreachable objects, %s, in %d ms.", count,
+                Utils.formatBytes(bytes), (System.nanoTime() - start) / 1000000);
+    }
+
+    /** Returns the commits reachable from any branch, in sorted order. */
+    private static Set<String> markCommits() {
+        CommitGraph graph = CommitGraph.get();
+        Set<String> marked = new TreeSet<>();
+        Deque<String> pending = new ArrayDeque<>(Repository.branches.values());
+        while (!pending.isEmpty()) {
+            String hash = pending.pop();
+            if (marked.add(hash)) {
+                pending.addAll(graph.getParents(hash));
+            }
+        }
+        return marked;
+    }
+
+    /** Adds to MARKED, which must allow concurrent adds, the trees and
+     *  blobs of COMMITS. */
+    private static void markTrees(Collection<String> commits, Set<String> marked) {
+        List<MarkCommit> roots = new ArrayList<>();
+        for (String hash: commits) {
+            roots.add(new MarkCommit(hash, marked));
+        }
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(roots);
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Marks the tree of a commit and what is below it. */
+    private static class MarkCommit extends RecursiveAction {
+        private final String hash;
+        private final Set<String> marked;
+
+        MarkCommit(String hash, Set<String> marked) {
+            this.hash = hash;
+            this.marked = marked;
+        }
+
+        @Override
+        protected void compute() {
+            Tree tree = Commit.getCommit(hash).getTree();
+            if (marked.add(tree.getHash())) {
+                new MarkTree(tree, marked).compute();
+            }
+        }
+    }
+
+    /** Marks what is below a tree already marked itself. */
+    private static class MarkTree extends RecursiveAction {
+        private final Tree tree;
+        private final Set<String> marked;
+
+        MarkTree(Tree tree, Set<String> marked) {
+            this.tree = tree;
+            this.marked = marked;
+        }
+
+        @Override
+        protected void compute() {
+            List<Tree> subtrees = new ArrayList<>();
+            tree.addChildren(subtrees, marked);
+            List<MarkTree> tasks = new ArrayList<>();
+            for (Tree subtree: subtrees) {
+                if (marked.add(subtree.getHash())) {
+                    tasks.add(new MarkTree(subtree, marked));
+                }
+            }
+            invokeAll(tasks);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/** The first-parent history of a commit, newest first.
+ *
+ *  Each commit is read only when next asks for it, so a caller that stops
+ *  early, such as log with a count or writing into a closed pipe, reads
+ *  no commit it does not print.  The history of a shallow clone ends at
+ *  its boundary commits.
+ *
+ *  @author yyy
+ */
+class History implements Iterator<Commit> {
+
+    /** The id of the commit next returns, or null at the end. */
+    private String nextHash;
+
+    private History(String hash) {
+        nextHash = hash;
+    }
+
+    /** Returns the history of commit HASH, starting with it. */
+    static Iterable<Commit> of(String hash) {
+        return () -> new History(hash);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextHash != null;
+    }
+
+    @Override
+    public Commit next() {
+        if (nextHash == null) {
+            throw new NoSuchElementException();
+        }
+        Commit commit = Commit.getCommit(nextHash);
+        List<String> parentHashes = commit.getParentHashes();
+        if (parentHashes.isEmpty() || Shallow.contains(nextHash)) {
+            nextHash = null;
+        } else {
+            nextHash = parentHashes.get(0);
+        }
+        return commit;
+    }
+}
@@ -0,0 +1,267 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Utils.join;
+
+/** The index: the list of files the next commit will hold, by path,
+ *  with the blob hash of each and the size, modification time and inode
+ *  its working file had when that hash was taken.
+ *
+ *  Files staged for addition are the entries whose hash differs from the
+ *  head commit, and files staged for removal are the head commit files
+ *  missing from the index, so there is no separate staging area.  The
+ *  recorded stat data lets commands tell whether a working file may have
+ *  changed without reading it: a file is only rehashed when its size,
+ *  modification time or inode differ from its entry.
+ *
+ *  The file starts with a magic word, a version and the number of
+ *  entries, followed by the entries sorted by name.
+ *
+ *  @author yyy
+ */
+class Index {
+
+    public static final File INDEX_FILE = join(Commit.GITLET_DIR, "INDEX");
+
+    /** "gIND", the first word of the index file. */
+    private static final int MAGIC = 0x67494E44;
+    private static final int VERSION = 1;
+
+    /** One tracked file. */
+    static class Entry {
+        private final String hash;
+        private final long size;
+        private final long mtime;
+        private final long inode;
+
+        Entry(String hash, long size, long mtime, long inode) {
+            this.hash = hash;
+            this.size = size;
+            this.mtime = mtime;
+            this.inode = inode;
+        }
+
+        /** An entry for HASH with no stat data, which never matches a file. */
+        Entry(String hash) {
+            this(hash, -1, -1, -1);
+        }
+
+        /** Whether STAT describes the file this entry was taken from. */
+        boolean matches(Entry stat) {
+            return size == stat.size && mtime == stat.mtime && inode == stat.inode;
+        }
+    }
+
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+    /** Entries modified at or after this time may have been changed again
+     *  within the same clock tick, after they were hashed, so their stat
+     *  data is not trusted. */
+    private long writtenAt = Long.MIN_VALUE;
+
+    private boolean changed = false;
+
+    /** Returns the index of the repository.  A repository without an
+     *  index file gets one holding the files of HEADCOMMIT, with the
+     *  contents of the old Stage directories folded in. */
+    static Index read(Commit headCommit) {
+        Index index = new Index();
+        if (!INDEX_FILE.exists()) {
+            for (String fileName: headCommit.getFiles()) {
+                index.entries.put(fileName, new Entry(headCommit.getFileHash(fileName)));
+            }
+            index.changed = true;
+            index.migrateStageDirs();
+            return index;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(INDEX_FILE.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw Utils.error("Corrupt index file.");
+            }
+            int size = in.readInt();
+            byte[] id = new byte[Utils.UID_LENGTH / 2];
+            for (int i = 0; i < size; i += 1) {
+                String fileName = in.readUTF();
+                long fileSize = in.readLong();
+                long mtime = in.readLong();
+                long inode = in.readLong();
+                in.readFully(id);
+                index.entries.put(fileName, new Entry(Utils.toHex(id), fileSize, mtime, inode));
+            }
+            index.writtenAt = Files.getLastModifiedTime(INDEX_FILE.toPath()).to(TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            throw Utils.error("Cannot read index file.");
+        }
+        return index;
+    }
+
+    /** Writes this index back, as part of the current command's
+     *  Journal, if it changed since it was read. */
+    void write() {
+        if (!changed) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> item: entries.entrySet()) {
+                Entry entry = item.getValue();
+                out.writeUTF(item.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.mtime);
+                out.writeLong(entry.inode);
+                out.write(Utils.fromHex(entry.hash));
+            }
+        } catch (IOException e) {
+            throw Utils.error("Cannot write index file.");
+        }
+        Journal.write(INDEX_FILE, bytes.toByteArray());
+        changed = false;
+    }
+
+    /** Stages files left in the Stage and Stage/Remove directories used
+     *  before there was an index, and deletes those directories once the
+     *  index holding them is written. */
+    private void migrateStageDirs() {
+        File stageDir = join(Commit.GITLET_DIR, "Stage");
+        File removeDir = join(stageDir, "Remove");
+        if (!stageDir.isDirectory()) {
+            return;
+        }
+        List<File> staged = new ArrayList<>();
+        for (String fileName: Utils.plainFilenamesIn(stageDir)) {
+            File stagedFile = join(stageDir, fileName);
+            String hash = Utils.getFileHash(stagedFile);
+            ObjectStore.writeBlob(stagedFile, hash);
+            entries.put(fileName, new Entry(hash));
+            staged.add(stagedFile);
+        }
+        List<String> removed = Utils.plainFilenamesIn(removeDir);
+        if (removed != null) {
+            for (String fileName: removed) {
+                entries.remove(fileName);
+                staged.add(join(removeDir, fileName));
+            }
+        }
+        write();
+        Journal.commit();
+        for (File file: staged) {
+            file.delete();
+        }
+        removeDir.delete();
+        stageDir.delete();
+    }
+
+    /** Returns the name FILE is tracked under: its path relative to the
+     *  working directory, with directories separated by '/'. */
+    static String nameOf(File file) {
+        Path path = Repository.CWD.toPath().relativize(file.toPath());
+        return path.toString().replace(File.separatorChar, '/');
+    }
+
+    /** Returns the tree of the files in this index. */
+    Tree getTree() {
+        TreeMap<String, String> files = new TreeMap<>();
+        for (Map.Entry<String, Entry> item: entries.entrySet()) {
+            files.put(item.getKey(), item.getValue().hash);
+        }
+        return Tree.fromFiles(files);
+    }
+
+    /** Returns the size, modification time and inode of FILE as an entry
+     *  without a hash. */
+    static Entry stat(File file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(),
+                    BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            long inode = 0;
+            try {
+                inode = (Long) Files.getAttribute(file.toPath(), "unix:ino");
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                // Not a unix file system: size and mtime will have to do
+            }
+            return new Entry(null, attrs.size(),
+                    attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), inode);
+        } catch (IOException e) {
+            throw Utils.error("Cannot stat %s.", file.getName());
+        }
+    }
+
+    boolean contains(String fileName) {
+        return entries.containsKey(fileName);
+    }
+
+    /** Returns the blob hash staged for FILENAME, or null. */
+    String getHash(String fileName) {
+        Entry entry = entries.get(fileName);
+        return entry == null ? null : entry.hash;
+    }
+
+    Set<String> getFiles() {
+        return entries.keySet();
+    }
+
+    /** Returns the hash of the working file FILE, which is rehashed only
+     *  if its stat data differs from its entry.  When a rehashed file
+     *  turns out unchanged, its entry takes the new stat data. */
+    String getWorkingHash(File file) {
+        Entry entry = entries.get(nameOf(file));
+        if (entry == null) {
+            return Utils.getFileHash(file);
+        }
+        Entry stat = stat(file);
+        String hash = getUnchangedHash(file, stat);
+        if (hash != null) {
+            return hash;
+        }
+        hash = Utils.getFileHash(file);
+        if (hash.equals(entry.hash)) {
+            add(file, hash, stat);
+        }
+        return hash;
+    }
+
+    /** Returns the hash of the working file FILE, whose stat data is STAT,
+     *  if its entry shows it unchanged, or null if it must be hashed.  As
+     *  this never changes the index, many threads may call it at once. */
+    String getUnchangedHash(File file, Entry stat) {
+        Entry entry = entries.get(nameOf(file));
+        if (entry != null && entry.matches(stat) && stat.mtime < writtenAt) {
+            return entry.hash;
+        }
+        return null;
+    }
+
+    /** Records that FILE, whose working copy has contents HASH, is part of
+     *  the next commit.  STAT is the stat data of FILE taken before it was
+     *  hashed. */
+    void add(File file, String hash, Entry stat) {
+        entries.put(nameOf(file), new Entry(hash, stat.size, stat.mtime, stat.inode));
+        changed = true;
+    }
+
+    void remove(String fileName) {
+        if (entries.remove(fileName) != null) {
+            changed = true;
+        }
+    }
+}
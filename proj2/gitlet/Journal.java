@@ -0,0 +1,249 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import static gitlet.Utils.join;
+
+/** A write-ahead journal that makes every change a command makes to the
+ *  files of the repository that can change, the refs, the index, the
+ *  commit graph and the commit log, take effect all at once or not at
+ *  all.
+ *
+ *  Commands do not write those files themselves but hand their new
+ *  contents to write or append, which only remember them.  When the
+ *  command is done, commit writes all of them into JOURNAL_FILE, forces
+ *  it to disk with a single fsync and only then updates the files.  The
+ *  updated files and their directories are synced in turn before
+ *  JOURNAL_FILE is deleted, so a crash never loses both.  A process
+ *  killed before JOURNAL_FILE is complete leaves the repository as it
+ *  was before the command; one killed after leaves a journal that
+ *  recover replays before the next command runs.  Both kinds of change
+ *  can be replayed any number of times: writes replace a whole file, and
+ *  appends record the length of the file they extend.
+ *
+ *  Commits, trees, blobs and packs are not journaled.  They are named
+ *  after their contents and never change, so they are written before the
+ *  journal, each to a temporary file renamed into place, and at worst a
+ *  crash leaves some that nothing refers to.  They must reach the disk
+ *  before the journal that refers to them does, though, so the loose
+ *  objects a command writes are handed to written, and commit syncs
+ *  them and their directories before it writes the journal.  A pack is
+ *  synced by the builder that writes it, since another repository may
+ *  refer to it as soon as it is finished.
+ *
+ *  JOURNAL_FILE is a magic word and the number of changes, then for each
+ *  change its path under the .gitlet directory, the length the file is
+ *  cut to before it is written (-1 to replace it) and the bytes written,
+ *  and finally a CRC-32 of everything before it.
+ *
+ *  @author yyy
+ */
+class Journal {
+
+    public static final File JOURNAL_FILE = join(Commit.GITLET_DIR, "JOURNAL");
+
+    /** "gJNL", the first word of the journal. */
+    private static final int MAGIC = 0x674A4E4C;
+
+    /** One change to a file. */
+    private static class Change {
+        private final File file;
+        private final long offset;
+        private final byte[] data;
+
+        Change(File file, long offset, byte[] data) {
+            this.file = file;
+            this.offset = offset;
+            this.data = data;
+        }
+
+        /** The length of FILE once this change is made. */
+        long end() {
+            return Math.max(offset, 0) + data.length;
+        }
+
+        void apply() throws IOException {
+            if (offset < 0) {
+                File tmpFile = new File(file.getParentFile(), "tmp_" + file.getName());
+                Files.write(tmpFile.toPath(), data);
+                Utils.moveFileTo(tmpFile, file);
+                return;
+            }
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                if (out.length() < offset) {
+                    throw Utils.error("Journal does not match %s.", file.getName());
+                }
+                out.setLength(offset);
+                out.seek(offset);
+                out.write(data);
+            }
+        }
+    }
+
+    /** Changes made by the current command, in order. */
+    private static final List<Change> pending = new ArrayList<>();
+
+    /** Makes FILE hold DATA once the current command commits. */
+    static void write(File file, byte[] data) {
+        pending.add(new Change(file, -1, data));
+    }
+
+    /** Appends DATA to FILE once the current command commits, and returns
+     *  the length FILE will then have. */
+    static long append(File file, byte[] data) {
+        long offset = file.length();
+        for (Change change: pending) {
+            if (change.file.equals(file)) {
+                offset = change.end();
+            }
+        }
+        Change change = new Change(file, offset, data);
+        pending.add(change);
+        return change.end();
+    }
+
+    /** Objects written by the current command and not yet synced.  Blobs
+     *  may be written by several threads at once. */
+    private static final Set<File> unsynced = Collections.synchronizedSet(new LinkedHashSet<>());
+
+    /** Notes that the object file FILE was written and must reach the disk
+     *  before anything that refers to it. */
+    static void written(File file) {
+        unsynced.add(file);
+    }
+
+    /** Forgets the changes of a command that stopped before committing. */
+    static void abort() {
+        pending.clear();
+        unsynced.clear();
+    }
+
+    /** Forces the objects written so far, then the directories they were
+     *  renamed into and the directories above those, which may be new
+     *  too, to disk.  The files are synced in parallel, which lets the
+     *  disk work on many at once. */
+    private static void syncObjects() {
+        List<File> files;
+        synchronized (unsynced) {
+            files = new ArrayList<>(unsynced);
+            unsynced.clear();
+        }
+        files.parallelStream().forEach(Utils::sync);
+        Set<File> dirs = new LinkedHashSet<>();
+        for (File file: files) {
+            dirs.add(file.getParentFile());
+            dirs.add(file.getParentFile().getParentFile());
+        }
+        for (File dir: dirs) {
+            Utils.sync(dir);
+        }
+    }
+
+    /** Makes all changes of the current command at once, once the objects
+     *  they may refer to are on disk. */
+    static void commit() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        syncObjects();
+        File tmpFile = join(Commit.GITLET_DIR, "tmp_JOURNAL");
+        try (FileOutputStream file = new FileOutputStream(tmpFile)) {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(file), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(pending.size());
+            for (Change change: pending) {
+                out.writeUTF(Commit.GITLET_DIR.toPath().relativize(change.file.toPath()).toString());
+                out.writeLong(change.offset);
+                out.writeInt(change.data.length);
+                out.write(change.data);
+            }
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            file.getFD().sync();
+            Trace.count(Trace.Counter.FSYNC, 1);
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw Utils.error("Cannot write journal.");
+        }
+        Utils.moveFileTo(tmpFile, JOURNAL_FILE);
+        // The journal must be found again before any change it records is
+        Utils.sync(Commit.GITLET_DIR);
+        List<Change> changes = new ArrayList<>(pending);
+        pending.clear();
+        apply(changes);
+    }
+
+    /** Finishes the changes of a command that was killed after it wrote
+     *  its journal, and throws away an incomplete journal. */
+    static void recover() {
+        join(Commit.GITLET_DIR, "tmp_JOURNAL").delete();
+        if (!JOURNAL_FILE.exists()) {
+            return;
+        }
+        List<Change> changes = new ArrayList<>();
+        try (CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(
+                Files.newInputStream(JOURNAL_FILE.toPath())), new CRC32())) {
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC) {
+                throw Utils.error("Corrupt journal.");
+            }
+            int size = in.readInt();
+            for (int i = 0; i < size; i += 1) {
+                File file = join(Commit.GITLET_DIR, in.readUTF());
+                long offset = in.readLong();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                changes.add(new Change(file, offset, data));
+            }
+            long checksum = checked.getChecksum().getValue();
+            if (in.readLong() != checksum) {
+                throw Utils.error("Corrupt journal.");
+            }
+        } catch (IOException e) {
+            throw Utils.error("Cannot read journal.");
+        }
+        apply(changes);
+    }
+
+    /** Makes CHANGES, then forces the files they touched and the
+     *  directories holding them to disk before deleting the journal,
+     *  which is the only record of them until then. */
+    private static void apply(List<Change> changes) {
+        Set<File> files = new LinkedHashSet<>();
+        try {
+            for (Change change: changes) {
+                change.apply();
+                files.add(change.file);
+            }
+        } catch (IOException e) {
+            throw Utils.error("Cannot apply journal.");
+        }
+        Set<File> dirs = new LinkedHashSet<>();
+        for (File file: files) {
+            Utils.sync(file);
+            dirs.add(file.getParentFile());
+        }
+        for (File dir: dirs) {
+            Utils.sync(dir);
+        }
+        JOURNAL_FILE.delete();
+    }
+}
@@ -1,5 +1,11 @@
 package gitlet;
 
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+
 /** Driver class for Gitlet, a subset of the Git version-control system.
  *  @author yyy
  */
@@ -9,21 +15,53 @@ public class Main {
      *  <COMMAND> <OPERAND1> <OPERAND2> ... 
      */
     public static void main(String[] args) {
+        if (Daemon.forward(args)) {
+            return;
+        }
+        run(args);
+    }
+
+    /** Runs the command given by ARGS.  A command stopped by
+     *  Utils.exitWithMsg prints its message and leaves the repository as
+     *  it was on disk; any other exception propagates. */
+    static void run(String[] args) {
+        Trace.startCommand(args);
+        try {
+            runCommand(args);
+        } catch (GitletException e) {
+            if (e.getMessage() != null) {
+                System.out.print(e.getMessage());
+            }
+        } finally {
+            Journal.abort();
+            Trace.finishCommand();
+        }
+    }
+
+    private static void runCommand(String[] args) {
         if (args.length == 0) {
             Utils.exitWithMsg("Please enter a command.");
         }
         String firstArg = args[0];
-        if (!firstArg.equals("init")) {
+        // Both of these make a new repository
+        boolean creates = firstArg.equals("init") || firstArg.equals("clone");
+        if (!creates) {
             Repository.checkInitRepo();
+            Journal.recover();
         }
+        Repository.resetState();
         Repository.readCommitPointers();
         switch(firstArg) {
             case "init":
                 Repository.initCommit();
                 break;
             case "add":
-                validateNumArgs("add", args, 2);
-                Repository.stageFileForAdd(Utils.join(Repository.CWD, args[1]));
+                // eg: add [file, directory or glob]...
+                if (args.length < 2) {
+                    validateNumArgs("add", args, 2);
+                }
+                Repository.stageFilesForAdd(Repository.findWorkingFiles(
+                        Arrays.asList(args).subList(1, args.length)));
                 break;
             case "commit":
                 validateNumArgs("commit", args, 2);
@@ -34,8 +72,19 @@ public class Main {
                 Repository.stageFileForRemove(Utils.join(Repository.CWD, args[1]));
                 break;
             case "log":
-                validateNumArgs("log", args, 1);
-                Repository.printLog();
+                // eg: log [--max-count N] [--since DATE]
+                int maxCount = Integer.MAX_VALUE;
+                long since = Long.MIN_VALUE;
+                for (int k = 1; k < args.length; k += 2) {
+                    if (args[k].equals("--max-count") && k + 1 < args.length) {
+                        maxCount = parseCount(args[k + 1]);
+                    } else if (args[k].equals("--since") && k + 1 < args.length) {
+                        since = parseDate(args[k + 1]);
+                    } else {
+                        Utils.exitWithMsg("Incorrect operands.");
+                    }
+                }
+                Repository.printLog(maxCount, since);
                 break;
             case "global-log":
                 validateNumArgs("global-log", args, 1);
@@ -83,10 +132,86 @@ public class Main {
                 validateNumArgs("merge", args, 2);
                 Repository.mergeBranch(args[1]);
                 break;
+            case "daemon":
+                if (args.length == 2 && args[1].equals("stop")) {
+                    // A running daemon would have taken this command
+                    Utils.exitWithMsg("No daemon is running.");
+                }
+                validateNumArgs("daemon", args, 1);
+                // Commands run by the daemon save their own state
+                Daemon.serve();
+                return;
+            case "add-remote":
+                validateNumArgs("add-remote", args, 3);
+                Remote.addRemote(args[1], args[2]);
+                break;
+            case "rm-remote":
+                validateNumArgs("rm-remote", args, 2);
+                Remote.removeRemote(args[1]);
+                break;
+            case "fetch":
+                validateNumArgs("fetch", args, 3);
+                Remote.fetch(args[1], args[2]);
+                break;
+            case "push":
+                validateNumArgs("push", args, 3);
+                Remote.push(args[1], args[2]);
+                break;
+            case "pull":
+                validateNumArgs("pull", args, 3);
+                Remote.pull(args[1], args[2]);
+                break;
+            case "ls-refs":
+                // Plumbing run by other repositories on this one
+                validateNumArgs("ls-refs", args, 1);
+                Remote.listRefs();
+                break;
+            case "clone":
+                // eg: clone [--depth N] [--filter=blob:none] [remote directory]
+                int depth = Integer.MAX_VALUE;
+                boolean withBlobs = true;
+                int i = 1;
+                while (i < args.length - 1 && args[i].startsWith("--")) {
+                    if (args[i].equals("--depth") && i + 1 < args.length - 1) {
+                        depth = parseCount(args[i + 1]);
+                        i += 2;
+                    } else if (args[i].equals("--filter=blob:none")) {
+                        withBlobs = false;
+                        i += 1;
+                    } else {
+                        Utils.exitWithMsg("Incorrect operands.");
+                    }
+                }
+                validateNumArgs("clone", args, i + 1);
+                Remote.clone(args[i], depth, withBlobs);
+                break;
+            case "upload-pack":
+                if (args.length < 2) {
+                    validateNumArgs("upload-pack", args, 2);
+                }
+                Remote.uploadPack(Arrays.asList(args).subList(1, args.length));
+                break;
+            case "receive-pack":
+                validateNumArgs("receive-pack", args, 4);
+                Remote.receivePack(args[1], args[2], args[3]);
+                break;
+            case "gc":
+                // eg: gc [--dry-run]
+                if (args.length == 2) {
+                    validateOperand(args[1], "--dry-run");
+                } else {
+                    validateNumArgs("gc", args, 1);
+                }
+                Repository.gc(args.length == 2);
+                break;
             default:
                 Utils.exitWithMsg("No command with that name exists.");
         }
         Repository.writeCommitPointers();
+        Repository.writeIndex();
+        try (Trace.Span span = Trace.begin("journal commit")) {
+            Journal.commit();
+        }
         return;
     }
 
@@ -105,6 +230,31 @@ public class Main {
         }
     }
 
+    /** Returns COUNT, which must be a positive number. */
+    private static int parseCount(String count) {
+        try {
+            int result = Integer.parseInt(count);
+            if (result > 0) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw Utils.error("Incorrect operands.");
+    }
+
+    /** Returns DATE, given as 2024-01-31 or 2024-01-31T12:00:00 in local
+     *  time, in milliseconds since the epoch. */
+    private static long parseDate(String date) {
+        try {
+            LocalDateTime time = date.contains("T") ? LocalDateTime.parse(date)
+                    : LocalDate.parse(date).atStartOfDay();
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw Utils.error("Incorrect operands.");
+        }
+    }
+
     public static void validateOperand(String operand, String check) {
         if (!operand.equals(check)) {
             Utils.exitWithMsg("Incorrect operands.");
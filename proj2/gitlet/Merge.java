@@ -0,0 +1,127 @@
+package gitlet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Three-way merge of texts, line by line.
+ *
+ *  Both sides are diffed against their common base.  Changes made by only
+ *  one side, or made identically by both, are taken as they are.  Where
+ *  changes of the two sides overlap or touch, the smallest region of the
+ *  base covering them is written out once as each side has it, between
+ *  conflict markers, and everything outside such regions is merged
+ *  cleanly.
+ *
+ *  Texts are taken as bytes, usually mapped blobs, and the merged text is
+ *  a list of views of their lines and of the markers, so nothing is
+ *  decoded or copied until it is written out.
+ *
+ *  @author yyy
+ */
+class Merge {
+
+    static final ByteBuffer OURS_MARKER = marker("<<<<<<< HEAD\n");
+    static final ByteBuffer SEPARATOR = marker("=======\n");
+    static final ByteBuffer THEIRS_MARKER = marker(">>>>>>>\n");
+
+    /** The merged text, in pieces, and whether it holds any conflict. */
+    private final List<ByteBuffer> text = new ArrayList<>();
+    private boolean conflict = false;
+
+    private Merge() {
+    }
+
+    private static ByteBuffer marker(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    /** Returns the pieces of the merged text, in order. */
+    List<ByteBuffer> getText() {
+        return text;
+    }
+
+    boolean hasConflict() {
+        return conflict;
+    }
+
+    /** Merges OURS and THEIRS, which both descend from BASE.  A side
+     *  that did not change a region wins it. */
+    static Merge merge(ByteBuffer base, ByteBuffer ours, ByteBuffer theirs) {
+        List<ByteBuffer> baseLines = Diff.lines(base);
+        List<ByteBuffer> ourLines = Diff.lines(ours);
+        List<ByteBuffer> theirLines = Diff.lines(theirs);
+        List<Diff.Hunk> ourHunks = Diff.diff(baseLines, ourLines);
+        List<Diff.Hunk> theirHunks = Diff.diff(baseLines, theirLines);
+
+        Merge result = new Merge();
+        int pos = 0;
+        int i = 0;
+        int j = 0;
+        while (i < ourHunks.size() || j < theirHunks.size()) {
+            // Start a region with whichever next hunk comes first, then
+            // pull in every hunk of either side that overlaps or touches it
+            int lo;
+            int hi;
+            int ourFirst = i;
+            int theirFirst = j;
+            if (j == theirHunks.size()
+                    || (i < ourHunks.size() && ourHunks.get(i).aStart <= theirHunks.get(j).aStart)) {
+                lo = ourHunks.get(i).aStart;
+                hi = ourHunks.get(i).aEnd;
+                i += 1;
+            } else {
+                lo = theirHunks.get(j).aStart;
+                hi = theirHunks.get(j).aEnd;
+                j += 1;
+            }
+            while (true) {
+                if (i < ourHunks.size() && ourHunks.get(i).aStart <= hi) {
+                    hi = Math.max(hi, ourHunks.get(i).aEnd);
+                    i += 1;
+                } else if (j < theirHunks.size() && theirHunks.get(j).aStart <= hi) {
+                    hi = Math.max(hi, theirHunks.get(j).aEnd);
+                    j += 1;
+                } else {
+                    break;
+                }
+            }
+
+            result.text.addAll(baseLines.subList(pos, lo));
+            List<ByteBuffer> ourText = apply(baseLines, ourLines, ourHunks.subList(ourFirst, i), lo, hi);
+            List<ByteBuffer> theirText =
+                    apply(baseLines, theirLines, theirHunks.subList(theirFirst, j), lo, hi);
+            if (ourFirst == i) {
+                result.text.addAll(theirText);
+            } else if (theirFirst == j || ourText.equals(theirText)) {
+                result.text.addAll(ourText);
+            } else {
+                result.conflict = true;
+                result.text.add(OURS_MARKER);
+                result.text.addAll(ourText);
+                result.text.add(SEPARATOR);
+                result.text.addAll(theirText);
+                result.text.add(THEIRS_MARKER);
+            }
+            pos = hi;
+        }
+        result.text.addAll(baseLines.subList(pos, baseLines.size()));
+        return result;
+    }
+
+    /** Returns BASE[LO, HI) with HUNKS, which lie within it and turn BASE
+     *  into SIDE, applied. */
+    private static List<ByteBuffer> apply(List<ByteBuffer> base, List<ByteBuffer> side,
+                                          List<Diff.Hunk> hunks, int lo, int hi) {
+        List<ByteBuffer> result = new ArrayList<>();
+        int pos = lo;
+        for (Diff.Hunk hunk: hunks) {
+            result.addAll(base.subList(pos, hunk.aStart));
+            result.addAll(side.subList(hunk.bStart, hunk.bEnd));
+            pos = hunk.aEnd;
+        }
+        result.addAll(base.subList(pos, hi));
+        return result;
+    }
+}
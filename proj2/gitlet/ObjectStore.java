@@ -0,0 +1,554 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static gitlet.Utils.join;
+
+/** Where gitlet keeps its commits and blobs.
+ *
+ *  New objects are always written loose, one file per object, under
+ *  Commit.COMMIT_DIR, Commit.TREE_DIR and Commit.BLOB_DIR.  Blobs are keyed by the SHA-1
+ *  of their contents alone, so identical contents are stored once no
+ *  matter how many files or commits hold them, and are stored deflated.  Reads look for a loose object
+ *  first and then through the index of every pack in Pack.PACK_DIR.
+ *  gc folds all loose objects and existing packs into a single new pack.
+ *
+ *  While packing, each blob of a commit is delta-encoded against the blob
+ *  the same file had in the commit's first parent, if that is smaller
+ *  than storing it whole.  Chains of deltas are at most MAX_DELTA_DEPTH
+ *  long, and rebuilt blobs are kept in a cache of DELTA_CACHE_BYTES bytes,
+ *  so reading a file version costs at most one delta application when
+ *  its neighbours were read just before, as in checkout or log walks.
+ *
+ *  @author yyy
+ */
+class ObjectStore {
+
+    /** Most deltas a blob is ever rebuilt through. */
+    private static final int MAX_DELTA_DEPTH = 10;
+
+    /** Blobs larger than this are never delta-encoded, which bounds the
+     *  memory used by gc and by reads of packed blobs. */
+    private static final int MAX_DELTA_SIZE = 16 << 20;
+
+    private static final int DELTA_CACHE_BYTES = 32 << 20;
+
+    /** Recently rebuilt blobs, and the blobs they were rebuilt from. */
+    private static final LinkedHashMap<String, byte[]> DELTA_CACHE =
+        new LinkedHashMap<>(16, 0.75f, true);
+    private static long deltaCacheBytes = 0;
+
+    /** Loaded lazily, and dropped whenever gc replaces the packs.  Blobs
+     *  may be read from several threads at once. */
+    private static List<Pack> packs = null;
+
+    /** Modification time of Pack.PACK_DIR when PACKS was loaded. */
+    private static long packsLoadedAt;
+
+    private static synchronized List<Pack> getPacks() {
+        if (packs == null) {
+            packsLoadedAt = Pack.PACK_DIR.lastModified();
+            packs = Pack.all();
+        }
+        return packs;
+    }
+
+    /** Drops the loaded packs if another process has added or removed
+     *  packs since they were loaded, for processes that run many commands. */
+    static synchronized void refresh() {
+        if (packs != null && packsLoadedAt != Pack.PACK_DIR.lastModified()) {
+            packs = null;
+        }
+    }
+
+    /** Drops the loaded packs, so packs this process just received are
+     *  read. */
+    static synchronized void reloadPacks() {
+        packs = null;
+    }
+
+    static File getCommitFile(String hash) {
+        return join(Commit.COMMIT_DIR, hash.substring(0, 2), hash.substring(2));
+    }
+
+    static File getTreeFile(String hash) {
+        return join(Commit.TREE_DIR, hash.substring(0, 2), hash.substring(2));
+    }
+
+    /** Returns the loose file of blob HASH. */
+    static File getBlobFile(String hash) {
+        return join(Commit.BLOB_DIR, hash.substring(0, 2), hash.substring(2));
+    }
+
+    /** Returns the bytes of object HASH of TYPE from the packs, or null. */
+    private static byte[] readPacked(String hash, int type) {
+        for (Pack pack: getPacks()) {
+            int i = pack.find(hash);
+            if (i >= 0 && pack.getType(i) == type) {
+                return pack.read(i);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isPacked(String hash, int type) {
+        for (Pack pack: getPacks()) {
+            int i = pack.find(hash);
+            if (i >= 0 && (pack.getType(i) == type
+                    || (type == Pack.BLOB && pack.getType(i) == Pack.DELTA))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean hasCommit(String hash) {
+        return getCommitFile(hash).isFile() || isPacked(hash, Pack.COMMIT);
+    }
+
+    /** Returns the stored bytes of commit HASH, or null if there is none. */
+    static byte[] readCommit(String hash) {
+        File commitFile = getCommitFile(hash);
+        if (commitFile.isFile()) {
+            return Utils.readContents(commitFile);
+        }
+        return readPacked(hash, Pack.COMMIT);
+    }
+
+    static void writeCommit(String hash, byte[] data) {
+        writeLoose(getCommitFile(hash), data);
+    }
+
+    static boolean hasTree(String hash) {
+        return getTreeFile(hash).isFile() || isPacked(hash, Pack.TREE);
+    }
+
+    /** Returns the stored bytes of tree HASH, or null if there is none. */
+    static byte[] readTree(String hash) {
+        File treeFile = getTreeFile(hash);
+        if (treeFile.isFile()) {
+            return Utils.readContents(treeFile);
+        }
+        return readPacked(hash, Pack.TREE);
+    }
+
+    static void writeTree(String hash, byte[] data) {
+        writeLoose(getTreeFile(hash), data);
+    }
+
+    /** Writes DATA to FILE through a temporary file, so FILE is never seen
+     *  half written. */
+    private static void writeLoose(File file, byte[] data) {
+        file.getParentFile().mkdirs();
+        File tmpFile = new File(file.getParentFile(), "tmp_" + file.getName());
+        Utils.writeContents(tmpFile, data);
+        Utils.moveFileTo(tmpFile, file);
+        Journal.written(file);
+    }
+
+    static boolean hasBlob(String hash) {
+        return getBlobFile(hash).exists() || isPacked(hash, Pack.BLOB);
+    }
+
+    /** Stores the contents of FILE, which hash to HASH, as a deflated
+     *  loose blob, unless a blob with that hash is already stored. */
+    static void writeBlob(File file, String hash) {
+        if (hasBlob(hash)) {
+            return;
+        }
+        File blobFile = getBlobFile(hash);
+        blobFile.getParentFile().mkdirs();
+        Utils.writeCompressed(file, blobFile);
+        Journal.written(blobFile);
+    }
+
+    /** Returns a stream of the contents of blob HASH. */
+    static InputStream openBlob(String hash) {
+        File blobFile = getBlobFile(hash);
+        if (blobFile.isFile()) {
+            return Utils.openCompressed(blobFile);
+        }
+        if (blobFile.isDirectory()) {
+            try {
+                return Files.newInputStream(getLegacyBlobFile(blobFile).toPath());
+            } catch (IOException e) {
+                throw Utils.error("Cannot read blob %s.", hash);
+            }
+        }
+        for (Pack pack: getPacks()) {
+            int i = pack.find(hash);
+            if (i >= 0 && pack.getType(i) == Pack.BLOB) {
+                return Utils.inflate(pack.open(i));
+            }
+            if (i >= 0 && pack.getType(i) == Pack.DELTA) {
+                return new ByteArrayInputStream(readDelta(hash, pack.read(i)));
+            }
+        }
+        if (Remote.fetchBlobs(Collections.singletonList(hash)) && hasBlob(hash)) {
+            return openBlob(hash);
+        }
+        throw Utils.error("Missing blob %s.", hash);
+    }
+
+    /** Returns a read-only view of the contents of blob HASH.  Blobs
+     *  stored uncompressed are mapped straight from their files; others
+     *  are inflated from their mapped files into one buffer, without the
+     *  copies a stream makes. */
+    static ByteBuffer mapBlob(String hash) {
+        File blobFile = getBlobFile(hash);
+        if (blobFile.isFile()) {
+            return Utils.inflate(Utils.map(blobFile));
+        }
+        if (blobFile.isDirectory()) {
+            return Utils.map(getLegacyBlobFile(blobFile));
+        }
+        for (Pack pack: getPacks()) {
+            int i = pack.find(hash);
+            if (i >= 0 && pack.getType(i) == Pack.BLOB) {
+                return Utils.inflate(pack.map(i));
+            }
+            if (i >= 0 && pack.getType(i) == Pack.DELTA) {
+                return ByteBuffer.wrap(readDelta(hash, pack.read(i))).asReadOnlyBuffer();
+            }
+        }
+        if (Remote.fetchBlobs(Collections.singletonList(hash)) && hasBlob(hash)) {
+            return mapBlob(hash);
+        }
+        throw Utils.error("Missing blob %s.", hash);
+    }
+
+    /** Makes sure every blob of HASHES is stored, fetching all those a
+     *  partial clone left out at once rather than one by one. */
+    static void prefetchBlobs(Collection<String> hashes) {
+        List<String> missing = new ArrayList<>();
+        for (String hash: new HashSet<>(hashes)) {
+            if (!hasBlob(hash)) {
+                missing.add(hash);
+            }
+        }
+        if (!missing.isEmpty()) {
+            Remote.fetchBlobs(missing);
+        }
+    }
+
+    /** Adds blob HASH to BUILDER, whole and deflated, copying its stored
+     *  bytes when it is stored that way already. */
+    static void packBlob(Pack.Builder builder, String hash) {
+        File blobFile = getBlobFile(hash);
+        try {
+            if (blobFile.isFile()) {
+                builder.add(hash, Pack.BLOB, Files.newInputStream(blobFile.toPath()),
+                        blobFile.length());
+                return;
+            }
+        } catch (IOException e) {
+            throw Utils.error("Cannot read blob %s.", hash);
+        }
+        for (Pack pack: getPacks()) {
+            int i = pack.find(hash);
+            if (i >= 0 && pack.getType(i) == Pack.BLOB) {
+                builder.add(hash, Pack.BLOB, pack.open(i), pack.getLength(i));
+                return;
+            }
+        }
+        builder.add(hash, Pack.BLOB, Utils.deflate(readBlob(hash)));
+    }
+
+    /** Returns the contents of blob HASH. */
+    static byte[] readBlob(String hash) {
+        return Utils.readContents(openBlob(hash));
+    }
+
+    /** Returns the contents of blob HASH, which is stored as the packed
+     *  delta DATA, rebuilding it and its bases unless they are cached. */
+    private static byte[] readDelta(String hash, byte[] data) {
+        byte[] contents = getCached(hash);
+        if (contents != null) {
+            return contents;
+        }
+        String baseHash = Utils.toHex(Arrays.copyOf(data, Utils.UID_LENGTH / 2));
+        byte[] base = getCached(baseHash);
+        if (base == null) {
+            base = readBlob(baseHash);
+            putCached(baseHash, base);
+        }
+        byte[] delta = Utils.readContents(Utils.inflate(new ByteArrayInputStream(
+                data, Utils.UID_LENGTH / 2, data.length - Utils.UID_LENGTH / 2)));
+        try (Trace.Span span = Trace.begin("apply delta")) {
+            contents = Delta.apply(base, delta);
+        }
+        putCached(hash, contents);
+        return contents;
+    }
+
+    private static byte[] getCached(String hash) {
+        synchronized (DELTA_CACHE) {
+            return DELTA_CACHE.get(hash);
+        }
+    }
+
+    private static void putCached(String hash, byte[] contents) {
+        if (contents.length > DELTA_CACHE_BYTES / 4) {
+            return;
+        }
+        synchronized (DELTA_CACHE) {
+            byte[] old = DELTA_CACHE.put(hash, contents);
+            deltaCacheBytes += contents.length - (old == null ? 0 : old.length);
+            Iterator<byte[]> eldest = DELTA_CACHE.values().iterator();
+            while (deltaCacheBytes > DELTA_CACHE_BYTES) {
+                deltaCacheBytes -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+    }
+
+    /** Writes the contents of blob HASH to DEST, creating the directories
+     *  above it as needed. */
+    static void copyBlobTo(String hash, File dest) {
+        dest.getParentFile().mkdirs();
+        Utils.writeContents(dest, openBlob(hash));
+    }
+
+    /** Blobs written before blobs were keyed by hash alone are stored
+     *  uncompressed as DIR/<file name>, where DIR is named after the hash.
+     *  Returns that file. */
+    private static File getLegacyBlobFile(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null || files.length == 0) {
+            throw Utils.error("Empty blob directory %s.", dir.getName());
+        }
+        return files[0];
+    }
+
+    /** Replaces the legacy blob directory DIR by a deflated loose blob and
+     *  returns the new blob file. */
+    private static File migrateLegacyBlob(File dir) {
+        File[] files = dir.listFiles();
+        File blobFile = new File(dir.getParentFile(), "tmp_" + dir.getName() + "_blob");
+        Utils.writeCompressed(getLegacyBlobFile(dir), blobFile);
+        for (File file: files) {
+            file.delete();
+        }
+        dir.delete();
+        Utils.moveFileTo(blobFile, dir);
+        return dir;
+    }
+
+    /** Returns the ids of all commits, loose or packed, in sorted order. */
+    static Set<String> allCommitHashes() {
+        Set<String> hashes = new TreeSet<>();
+        for (File file: Utils.filesIn(Commit.COMMIT_DIR)) {
+            hashes.add(file.getParentFile().getName() + file.getName());
+        }
+        for (Pack pack: getPacks()) {
+            for (int i = 0; i < pack.size(); i += 1) {
+                if (pack.getType(i) == Pack.COMMIT) {
+                    hashes.add(pack.getId(i));
+                }
+            }
+        }
+        return hashes;
+    }
+
+    /** Returns the number of bytes each stored object takes up, loose or
+     *  packed, keyed by its id. */
+    static Map<String, Long> storedSizes() {
+        Map<String, Long> sizes = new HashMap<>();
+        for (File dir: new File[] {Commit.COMMIT_DIR, Commit.TREE_DIR, Commit.BLOB_DIR}) {
+            for (File file: Utils.filesIn(dir)) {
+                // A legacy blob is a directory holding one file
+                File objectDir = file.getParentFile().getParentFile();
+                String hash = objectDir.getParentFile().equals(Commit.BLOB_DIR)
+                        ? objectDir.getName() + file.getParentFile().getName()
+                        : file.getParentFile().getName() + file.getName();
+                sizes.merge(hash, file.length(), Long::sum);
+            }
+        }
+        for (Pack pack: getPacks()) {
+            for (int i = 0; i < pack.size(); i += 1) {
+                sizes.merge(pack.getId(i), pack.getLength(i), Long::sum);
+            }
+        }
+        return sizes;
+    }
+
+    /** Folds the objects of KEEP, or every object if KEEP is null, loose
+     *  or packed, into one new pack, then deletes everything it replaced,
+     *  so that objects not in KEEP are gone.  Returns the number of
+     *  objects in the new pack. */
+    static int repack(Set<String> keep) {
+        List<Pack> oldPacks = getPacks();
+        List<File> looseCommits = Utils.filesIn(Commit.COMMIT_DIR);
+        List<File> looseTrees = Utils.filesIn(Commit.TREE_DIR);
+        List<File> looseBlobs = new ArrayList<>();
+        File[] fanouts = Commit.BLOB_DIR.listFiles();
+        if (fanouts != null) {
+            for (File fanout: fanouts) {
+                File[] entries = fanout.listFiles();
+                for (File entry: entries == null ? new File[0] : entries) {
+                    looseBlobs.add(entry.isDirectory() ? migrateLegacyBlob(entry) : entry);
+                }
+            }
+        }
+        if (keep == null && looseCommits.isEmpty() && looseTrees.isEmpty()
+                && looseBlobs.isEmpty() && oldPacks.size() <= 1) {
+            return oldPacks.isEmpty() ? 0 : oldPacks.get(0).size();
+        }
+        Map<String, String> deltaBases = chooseDeltaBases(keep);
+        // Objects to leave out count as seen already
+        Set<String> seen = new HashSet<>();
+        if (keep != null) {
+            seen.addAll(storedSizes().keySet());
+            seen.removeAll(keep);
+        }
+        Pack.Builder builder = new Pack.Builder();
+        for (File file: looseCommits) {
+            String hash = file.getParentFile().getName() + file.getName();
+            if (seen.add(hash)) {
+                builder.add(hash, Pack.COMMIT, Utils.readContents(file));
+            }
+        }
+        for (File file: looseTrees) {
+            String hash = file.getParentFile().getName() + file.getName();
+            if (seen.add(hash)) {
+                builder.add(hash, Pack.TREE, Utils.readContents(file));
+            }
+        }
+        for (File file: looseBlobs) {
+            String hash = file.getParentFile().getName() + file.getName();
+            if (seen.add(hash) && !addDelta(builder, hash, deltaBases.get(hash), file.length())) {
+                try {
+                    builder.add(hash, Pack.BLOB, Files.newInputStream(file.toPath()), file.length());
+                } catch (IOException e) {
+                    throw Utils.error("Cannot read blob %s.", hash);
+                }
+            }
+        }
+        for (Pack pack: oldPacks) {
+            for (int i = 0; i < pack.size(); i += 1) {
+                String hash = pack.getId(i);
+                int type = pack.getType(i);
+                if (!seen.add(hash)) {
+                    continue;
+                }
+                if (type == Pack.COMMIT || type == Pack.TREE) {
+                    builder.add(hash, type, pack.open(i), pack.getLength(i));
+                } else if (!addDelta(builder, hash, deltaBases.get(hash),
+                        type == Pack.BLOB ? pack.getLength(i) : Long.MAX_VALUE)) {
+                    if (type == Pack.BLOB) {
+                        builder.add(hash, type, pack.open(i), pack.getLength(i));
+                    } else {
+                        builder.add(hash, Pack.BLOB, Utils.deflate(readBlob(hash)));
+                    }
+                }
+            }
+        }
+        Pack newPack = builder.finish();
+        for (Pack pack: oldPacks) {
+            if (!pack.getIdxFile().equals(newPack.getIdxFile())) {
+                pack.delete();
+            }
+        }
+        deleteTree(Commit.COMMIT_DIR, looseCommits);
+        deleteTree(Commit.TREE_DIR, looseTrees);
+        deleteTree(Commit.BLOB_DIR, looseBlobs);
+        packs = null;
+        return newPack.size();
+    }
+
+    /** Returns the blob each delta-encoded blob should be encoded
+     *  against: the blob of the same file in the first parent of the
+     *  first commit holding it, unless that would make a chain of more
+     *  than MAX_DELTA_DEPTH deltas.  Commits are visited parents first, so
+     *  every base is decided before the blobs encoded against it.  Only the
+     *  commits of KEEP, whose parents it holds too, are looked at unless
+     *  KEEP is null. */
+    private static Map<String, String> chooseDeltaBases(Set<String> keep) {
+        Map<String, String> bases = new HashMap<>();
+        Map<String, Integer> depths = new HashMap<>();
+        CommitGraph graph = CommitGraph.get();
+        for (String commitHash: graph.getIds()) {
+            if (keep != null && !keep.contains(commitHash)) {
+                continue;
+            }
+            Commit commit = Commit.getCommit(commitHash);
+            List<String> parentHashes = graph.getParents(commitHash);
+            Commit parent = parentHashes.isEmpty() ? null : Commit.getCommit(parentHashes.get(0));
+            for (String fileName: commit.getFiles()) {
+                String hash = commit.getFileHash(fileName);
+                if (depths.containsKey(hash)) {
+                    continue;
+                }
+                String baseHash = parent == null ? null : parent.getFileHash(fileName);
+                Integer baseDepth = baseHash == null ? null : depths.get(baseHash);
+                if (baseDepth != null && baseDepth < MAX_DELTA_DEPTH) {
+                    bases.put(hash, baseHash);
+                    depths.put(hash, baseDepth + 1);
+                } else {
+                    depths.put(hash, 0);
+                }
+            }
+        }
+        return bases;
+    }
+
+    /** Adds blob HASH to BUILDER as a delta against blob BASEHASH, if
+     *  BASEHASH is not null and the delta is smaller than STOREDLENGTH,
+     *  the size of the blob stored whole, or Long.MAX_VALUE if that is
+     *  unknown.  Returns whether it did. */
+    private static boolean addDelta(Pack.Builder builder, String hash, String baseHash,
+                                    long storedLength) {
+        // A partial clone may not have the base at all
+        if (baseHash == null || !hasBlob(baseHash)) {
+            return false;
+        }
+        byte[] base = readBlob(baseHash);
+        byte[] contents = readBlob(hash);
+        if (base.length > MAX_DELTA_SIZE || contents.length > MAX_DELTA_SIZE) {
+            return false;
+        }
+        byte[] delta = Utils.deflate(Delta.create(base, contents));
+        if (Utils.UID_LENGTH / 2 + delta.length >= storedLength) {
+            return false;
+        }
+        byte[] data = Arrays.copyOf(Utils.fromHex(baseHash), Utils.UID_LENGTH / 2 + delta.length);
+        System.arraycopy(delta, 0, data, Utils.UID_LENGTH / 2, delta.length);
+        builder.add(hash, Pack.DELTA, data);
+        return true;
+    }
+
+    /** Deletes FILES and then every directory under ROOT they leave empty. */
+    private static void deleteTree(File root, List<File> files) {
+        Set<File> dirs = new HashSet<>();
+        for (File file: files) {
+            file.delete();
+            for (File dir = file.getParentFile(); !dir.equals(root); dir = dir.getParentFile()) {
+                dirs.add(dir);
+            }
+        }
+        // Deepest directories first, so parents are empty when we reach them
+        List<File> sortedDirs = new ArrayList<>(dirs);
+        sortedDirs.sort(Comparator.comparingInt((File dir) -> dir.getPath().length()).reversed());
+        for (File dir: sortedDirs) {
+            dir.delete();
+        }
+    }
+}
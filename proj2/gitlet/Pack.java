@@ -0,0 +1,326 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static gitlet.Utils.join;
+
+/** A pack of gitlet objects, stored as two files in PACK_DIR.
+ *
+ *  pack-ID.pack holds the objects back to back, each written as a type
+ *  byte, an eight byte length and the object bytes as ObjectStore stores
+ *  them, so blobs stay deflated.  A blob may instead be stored as a DELTA:
+ *  the 20 byte id of another blob of the pack followed by a deflated
+ *  Delta that rebuilds it from that blob.  The pack is only ever appended
+ *  to while it is being built.
+ *
+ *  pack-ID.idx lists every object of the pack sorted by id, as fixed size
+ *  entries of (20 byte id, type, offset into the .pack file), so an object
+ *  is found by binary search over the index without touching the pack.
+ *
+ *  @author yyy
+ */
+class Pack {
+
+    public static final File PACK_DIR = join(Commit.GITLET_DIR, "Pack");
+
+    /** Object types. */
+    static final int COMMIT = 1;
+    static final int BLOB = 2;
+    static final int DELTA = 3;
+    static final int TREE = 4;
+
+    /** "gIDX", the first word of every index file. */
+    private static final int IDX_MAGIC = 0x67494458;
+    private static final int IDX_HEADER = 8;
+    private static final int ID_BYTES = 20;
+    private static final int IDX_ENTRY = ID_BYTES + 4 + 8;
+
+    private final File packFile;
+    private final File idxFile;
+    private final ByteBuffer idx;
+    private final int size;
+
+    private Pack(File idxFile) {
+        this.idxFile = idxFile;
+        String name = idxFile.getName();
+        packFile = join(idxFile.getParentFile(), name.substring(0, name.length() - 4) + ".pack");
+        try (FileChannel channel = FileChannel.open(idxFile.toPath(), StandardOpenOption.READ)) {
+            idx = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw Utils.error("Cannot read pack index %s.", name);
+        }
+        if (idx.getInt(0) != IDX_MAGIC) {
+            throw Utils.error("Corrupt pack index %s.", name);
+        }
+        size = idx.getInt(4);
+    }
+
+    /** Returns all packs of the repository, in name order. */
+    static List<Pack> all() {
+        List<Pack> packs = new ArrayList<>();
+        List<String> names = Utils.plainFilenamesIn(PACK_DIR);
+        if (names != null) {
+            for (String name: names) {
+                if (name.endsWith(".idx")) {
+                    packs.add(new Pack(join(PACK_DIR, name)));
+                }
+            }
+        }
+        return packs;
+    }
+
+    /** Number of objects in this pack. */
+    int size() {
+        return size;
+    }
+
+    String getId(int i) {
+        byte[] id = new byte[ID_BYTES];
+        idx.get(IDX_HEADER + i * IDX_ENTRY, id);
+        return Utils.toHex(id);
+    }
+
+    int getType(int i) {
+        return idx.getInt(IDX_HEADER + i * IDX_ENTRY + ID_BYTES);
+    }
+
+    private long getOffset(int i) {
+        return idx.getLong(IDX_HEADER + i * IDX_ENTRY + ID_BYTES + 4);
+    }
+
+    /** Compare entry I of the index with the leading bytes of ID. */
+    private int compareId(int i, byte[] id) {
+        int base = IDX_HEADER + i * IDX_ENTRY;
+        for (int k = 0; k < id.length; k += 1) {
+            int cmp = Integer.compare(idx.get(base + k) & 0xff, id[k] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /** Returns the index of the first entry whose id is not less than the
+     *  id whose leading bytes are ID. */
+    private int lowerBound(byte[] id) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareId(mid, id) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Returns the index of the object HASH, or -1 if it is not here. */
+    int find(String hash) {
+        if (hash.length() != Utils.UID_LENGTH) {
+            return -1;
+        }
+        byte[] id = Utils.fromHex(hash);
+        int i = lowerBound(id);
+        if (i < size && compareId(i, id) == 0) {
+            return i;
+        }
+        return -1;
+    }
+
+    /** Returns a stream of the stored bytes of object I, which reads
+     *  straight from the pack file. */
+    InputStream open(int i) {
+        try {
+            RandomAccessFile in = new RandomAccessFile(packFile, "r");
+            in.seek(getOffset(i) + 1);
+            return new EntryStream(in, in.readLong());
+        } catch (IOException e) {
+            throw Utils.error("Cannot read pack %s.", packFile.getName());
+        }
+    }
+
+    /** Returns a read-only view of the stored bytes of object I, mapped
+     *  from the pack file. */
+    ByteBuffer map(int i) {
+        return Utils.map(packFile, getOffset(i) + 1 + 8, getLength(i));
+    }
+
+    /** Returns the stored bytes of object I. */
+    byte[] read(int i) {
+        return Utils.readContents(open(i));
+    }
+
+    /** Returns the number of stored bytes of object I. */
+    long getLength(int i) {
+        try (RandomAccessFile in = new RandomAccessFile(packFile, "r")) {
+            in.seek(getOffset(i) + 1);
+            return in.readLong();
+        } catch (IOException e) {
+            throw Utils.error("Cannot read pack %s.", packFile.getName());
+        }
+    }
+
+    /** Deletes both files of this pack. */
+    void delete() {
+        packFile.delete();
+        idxFile.delete();
+    }
+
+    File getIdxFile() {
+        return idxFile;
+    }
+
+    /** One line of an index file. */
+    private static class Entry {
+        private final byte[] id;
+        private final int type;
+        private final long offset;
+
+        Entry(byte[] id, int type, long offset) {
+            this.id = id;
+            this.type = type;
+            this.offset = offset;
+        }
+    }
+
+    /** The bytes of one object, read from an open pack file. */
+    private static class EntryStream extends InputStream {
+        private final RandomAccessFile file;
+        private long remaining;
+
+        EntryStream(RandomAccessFile file, long length) {
+            this.file = file;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            remaining -= 1;
+            return file.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = file.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /** Builds a new pack by appending objects one at a time. */
+    static class Builder {
+        private final File dir;
+        private final File tmpFile;
+        private final DataOutputStream out;
+        private final List<Entry> entries = new ArrayList<>();
+        private long offset = 0;
+
+        Builder() {
+            this(PACK_DIR);
+        }
+
+        /** A builder of a pack in DIR, which may belong to another
+         *  repository. */
+        Builder(File dir) {
+            this.dir = dir;
+            dir.mkdir();
+            try {
+                // Named uniquely, as other builders may be writing packs
+                // into DIR at the same time
+                tmpFile = File.createTempFile("tmp_pack", null, dir);
+                out = new DataOutputStream(new BufferedOutputStream(
+                        Files.newOutputStream(tmpFile.toPath())));
+            } catch (IOException e) {
+                throw Utils.error("Cannot create pack.");
+            }
+        }
+
+        /** Appends object HASH of TYPE with contents DATA. */
+        void add(String hash, int type, byte[] data) {
+            add(hash, type, new ByteArrayInputStream(data), data.length);
+        }
+
+        /** Appends object HASH of TYPE whose LENGTH bytes are read from IN,
+         *  then closes IN. */
+        void add(String hash, int type, InputStream in, long length) {
+            try (InputStream str = in) {
+                out.writeByte(type);
+                out.writeLong(length);
+                if (Utils.copyStream(str, out) != length) {
+                    throw Utils.error("Object %s changed while packing.", hash);
+                }
+            } catch (IOException e) {
+                throw Utils.error("Cannot write pack.");
+            }
+            entries.add(new Entry(Utils.fromHex(hash), type, offset));
+            offset += 1 + 8 + length;
+        }
+
+        int size() {
+            return entries.size();
+        }
+
+        /** Writes the index, names both files after the ids they hold,
+         *  forces both to disk and returns the finished pack. */
+        Pack finish() {
+            try {
+                out.close();
+                entries.sort(Comparator.comparing(e -> e.id, Arrays::compareUnsigned));
+                List<Object> ids = new ArrayList<>();
+                for (Entry entry: entries) {
+                    ids.add(entry.id);
+                }
+                String name = "pack-" + Utils.sha1(ids);
+                Utils.sync(tmpFile);
+                Utils.moveFileTo(tmpFile, join(dir, name + ".pack"));
+                File idxFile = join(dir, name + ".idx");
+                File tmpIdxFile = File.createTempFile("tmp_idx", null, dir);
+                DataOutputStream idxOut = new DataOutputStream(new BufferedOutputStream(
+                        Files.newOutputStream(tmpIdxFile.toPath())));
+                idxOut.writeInt(IDX_MAGIC);
+                idxOut.writeInt(entries.size());
+                for (Entry entry: entries) {
+                    idxOut.write(entry.id);
+                    idxOut.writeInt(entry.type);
+                    idxOut.writeLong(entry.offset);
+                }
+                idxOut.close();
+                Utils.sync(tmpIdxFile);
+                Utils.moveFileTo(tmpIdxFile, idxFile);
+                Utils.sync(dir);
+                return new Pack(idxFile);
+            } catch (IOException e) {
+                throw Utils.error("Cannot write pack index.");
+            }
+        }
+    }
+}
@@ -0,0 +1,483 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.join;
+
+/** Other repositories that commits are fetched from and pushed to.
+ *
+ *  A remote is a name for the .gitlet directory of another repository on
+ *  this machine, kept in REMOTES_FILE.  Gitlet never reads or writes the
+ *  refs of a remote itself.  It runs the plumbing commands ls-refs,
+ *  upload-pack and receive-pack inside the remote repository instead,
+ *  through the remote's daemon when one is running and otherwise in a new
+ *  gitlet process started in the remote's working directory, so the
+ *  remote's journal, commit graph and commit log stay its own business.
+ *
+ *  Fetching negotiates what to send: the fetching side lists commits it
+ *  has, each of its branch heads and their first-parent ancestors 1, 2, 4,
+ *  8, ... commits back, and the remote sends every commit reachable from
+ *  the wanted branch but from none of the listed commits it knows.  Those
+ *  commits, with the trees and blobs each adds over its first parent,
+ *  travel as one pack written straight into the receiver's pack directory.
+ *  Pushing works the same way in the other direction, with the remote's
+ *  branch heads as what it has.
+ *
+ *  Fetched branches are kept as local branches named REMOTE/BRANCH.
+ *
+ *  clone makes the working directory a copy of a remote, and can leave
+ *  out history or contents.  With a depth, only commits that many parent
+ *  links from the cloned head are fetched, and the oldest of them are
+ *  recorded in Shallow.  A clone without blobs fetches commits and trees
+ *  only, and records the remote in PROMISOR_FILE; blobs are then fetched
+ *  from it when first read, all at once for a checkout.
+ *
+ *  @author yyy
+ */
+class Remote {
+
+    public static final File REMOTES_FILE = join(Commit.GITLET_DIR, "REMOTES");
+
+    /** Names the remote a partial clone fetches missing blobs from. */
+    public static final File PROMISOR_FILE = join(Commit.GITLET_DIR, "PROMISOR");
+
+    /** Most blobs asked for by one command run in a remote, which keeps
+     *  its command line short. */
+    private static final int MAX_BLOBS_PER_CALL = 1000;
+
+    /** The branches of a remote and its current branch. */
+    private static class Refs {
+        private String head;
+        private final Map<String, String> branches = new TreeMap<>();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static TreeMap<String, String> readRemotes() {
+        if (!REMOTES_FILE.exists()) {
+            return new TreeMap<>();
+        }
+        return Utils.readObject(REMOTES_FILE, TreeMap.class);
+    }
+
+    static void addRemote(String name, String path) {
+        TreeMap<String, String> remotes = readRemotes();
+        if (remotes.containsKey(name)) {
+            Utils.exitWithMsg("A remote with that name already exists.");
+        }
+        remotes.put(name, path);
+        Journal.write(REMOTES_FILE, Utils.serialize(remotes));
+    }
+
+    static void removeRemote(String name) {
+        TreeMap<String, String> remotes = readRemotes();
+        if (remotes.remove(name) == null) {
+            Utils.exitWithMsg("A remote with that name does not exist.");
+        }
+        Journal.write(REMOTES_FILE, Utils.serialize(remotes));
+    }
+
+    /** Returns the .gitlet directory of remote NAME, whose path is
+     *  written with '/' and may be relative to the working directory. */
+    private static File getRemoteDir(String name) {
+        String path = readRemotes().get(name);
+        if (path == null) {
+            Utils.exitWithMsg("A remote with that name does not exist.");
+        }
+        return resolve(path);
+    }
+
+    /** Returns the .gitlet directory PATH, written with '/' and possibly
+     *  relative to the working directory. */
+    private static File resolve(String path) {
+        File dir = new File(path.replace('/', File.separatorChar));
+        if (!dir.isAbsolute()) {
+            dir = join(Repository.CWD, path.replace('/', File.separatorChar));
+        }
+        if (!dir.isDirectory()) {
+            Utils.exitWithMsg("Remote directory not found.");
+        }
+        return dir;
+    }
+
+    /** Runs ARGS in the repository of REMOTEDIR and returns what it
+     *  printed. */
+    private static String call(File remoteDir, String... args) {
+        try (Trace.Span span = Trace.begin("remote " + args[0])) {
+            return callTraced(remoteDir, args);
+        }
+    }
+
+    private static String callTraced(File remoteDir, String[] args) {
+        File socket = join(remoteDir, Daemon.SOCKET_FILE.getName());
+        if (socket.exists()) {
+            try {
+                Daemon.Reply reply = Daemon.call(socket, args);
+                if (reply.status != 0) {
+                    throw Utils.error("Remote %s failed.", args[0]);
+                }
+                return new String(reply.out, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                // A daemon that died without cleaning up: start gitlet there
+            }
+        }
+        List<String> command = new ArrayList<>(Arrays.asList(
+                join(System.getProperty("java.home"), "bin", "java").getPath(),
+                "-cp", System.getProperty("java.class.path"), Main.class.getName()));
+        command.addAll(Arrays.asList(args));
+        try {
+            Process process = new ProcessBuilder(command)
+                    .directory(remoteDir.getAbsoluteFile().getParentFile())
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            process.getOutputStream().close();
+            byte[] out = Utils.readContents(process.getInputStream());
+            if (process.waitFor() != 0) {
+                throw Utils.error("Remote %s failed.", args[0]);
+            }
+            return new String(out, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw Utils.error("Cannot run gitlet in remote.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Utils.error("Interrupted.");
+        }
+    }
+
+    /** Returns the branches of the repository of REMOTEDIR. */
+    private static Refs listRemoteRefs(File remoteDir) {
+        Refs refs = new Refs();
+        String[] lines = call(remoteDir, "ls-refs").split("\n");
+        refs.head = lines[0];
+        for (int i = 1; i < lines.length; i += 1) {
+            int space = lines[i].indexOf(' ');
+            if (space > 0) {
+                refs.branches.put(lines[i].substring(space + 1), lines[i].substring(0, space));
+            }
+        }
+        return refs;
+    }
+
+    /** Fetches BRANCH of remote NAME into the local branch NAME/BRANCH. */
+    static void fetch(String name, String branch) {
+        File remoteDir = getRemoteDir(name);
+        String want = listRemoteRefs(remoteDir).branches.get(branch);
+        if (want == null) {
+            Utils.exitWithMsg("That remote does not have that branch.");
+        }
+        // A partial clone stays partial
+        fetchCommits(remoteDir, want, Integer.MAX_VALUE,
+                !name.equals(readPromisor()));
+        Repository.branches.put(name + "/" + branch, want);
+    }
+
+    /** Fetches WANT and the commits before it from the repository of
+     *  REMOTEDIR, at most DEPTH of them deep, and their blobs too if
+     *  WITHBLOBS. */
+    private static void fetchCommits(File remoteDir, String want, int depth, boolean withBlobs) {
+        if (CommitGraph.get().contains(want)) {
+            return;
+        }
+        List<String> args = new ArrayList<>(Arrays.asList(
+                "upload-pack", Pack.PACK_DIR.getAbsolutePath()));
+        if (depth != Integer.MAX_VALUE) {
+            args.addAll(Arrays.asList("--depth", Integer.toString(depth)));
+        }
+        if (!withBlobs) {
+            args.add("--no-blobs");
+        }
+        args.add(want);
+        args.addAll(getHaves());
+        List<String> boundary = new ArrayList<>();
+        for (String line: call(remoteDir, args.toArray(new String[0])).split("\n")) {
+            if (line.startsWith("shallow ")) {
+                boundary.add(line.substring("shallow ".length()));
+            } else if (!line.isEmpty()) {
+                Utils.exitWithMsg(line);
+            }
+        }
+        ObjectStore.reloadPacks();
+        Shallow.add(boundary);
+        addCommits(want);
+    }
+
+    /** Makes the working directory, which must hold no files and not be
+     *  a repository yet, a clone of the repository whose .gitlet directory
+     *  is PATH, known as the remote "origin", with the current branch of
+     *  that repository checked out.  Only commits fewer than DEPTH parent
+     *  links from its head are fetched, and blobs only if WITHBLOBS.  A
+     *  clone that fails leaves no repository behind. */
+    static void clone(String path, int depth, boolean withBlobs) {
+        if (Commit.GITLET_DIR.exists()) {
+            Utils.exitWithMsg("A Gitlet version-control system already exists in the current directory.");
+        }
+        // Nothing the checkout would overwrite can have been committed yet
+        if (!Repository.getWorkingFiles().isEmpty()) {
+            Utils.exitWithMsg("There is an untracked file in the way; delete it, or add and commit it first.");
+        }
+        File remoteDir = resolve(path);
+        Refs refs = listRemoteRefs(remoteDir);
+        String want = refs.branches.get(refs.head);
+        if (want == null) {
+            // Not a repository, whose gitlet said so instead of listing refs
+            Utils.exitWithMsg("Remote directory not found.");
+        }
+        Repository.setupPersistence();
+        try {
+            // Written at once, not through the journal: the checkout below
+            // may already fetch blobs from the remote
+            Utils.writeContents(REMOTES_FILE, Utils.serialize(new TreeMap<>(Map.of("origin", path))));
+            if (!withBlobs) {
+                Utils.writeContents(PROMISOR_FILE, "origin");
+            }
+            fetchCommits(remoteDir, want, depth, withBlobs);
+            Repository.head = refs.head;
+            Repository.branches.put(refs.head, want);
+            Repository.branches.put("origin/" + refs.head, want);
+            Checkout.apply(Commit.getCommit(want), Repository.getIndex(), Repository.CWD);
+            // Saved here as well as by Main, so a clone that cannot be
+            // saved is removed too
+            Repository.writeCommitPointers();
+            Repository.writeIndex();
+            Journal.commit();
+        } catch (RuntimeException e) {
+            Utils.deleteDirectory(Commit.GITLET_DIR);
+            throw e;
+        }
+    }
+
+    /** Returns the remote this repository is a partial clone of, or null
+     *  if it is complete. */
+    private static String readPromisor() {
+        return PROMISOR_FILE.exists() ? Utils.readContentsAsString(PROMISOR_FILE) : null;
+    }
+
+    /** Fetches the blobs HASHES from the remote this repository is a
+     *  partial clone of.  Returns false, having done nothing, if it is
+     *  not one. */
+    static synchronized boolean fetchBlobs(Collection<String> hashes) {
+        String name = readPromisor();
+        if (name == null) {
+            return false;
+        }
+        File remoteDir = getRemoteDir(name);
+        List<String> all = new ArrayList<>(hashes);
+        for (int start = 0; start < all.size(); start += MAX_BLOBS_PER_CALL) {
+            List<String> args = new ArrayList<>(Arrays.asList(
+                    "upload-pack", Pack.PACK_DIR.getAbsolutePath(), "--blobs"));
+            args.addAll(all.subList(start, Math.min(all.size(), start + MAX_BLOBS_PER_CALL)));
+            String error = call(remoteDir, args.toArray(new String[0]));
+            if (!error.isEmpty()) {
+                throw Utils.error(error);
+            }
+        }
+        ObjectStore.reloadPacks();
+        return true;
+    }
+
+    /** Fetches BRANCH of remote NAME and merges it into the current
+     *  branch.  The fetch is committed first, so it is kept even if the
+     *  merge stops. */
+    static void pull(String name, String branch) {
+        fetch(name, branch);
+        Repository.writeCommitPointers();
+        try (Trace.Span span = Trace.begin("journal commit")) {
+            Journal.commit();
+        }
+        Repository.mergeBranch(name + "/" + branch);
+    }
+
+    /** Makes BRANCH of remote NAME, created if need be, point to the head
+     *  of the current branch, as long as that only adds commits to it. */
+    static void push(String name, String branch) {
+        File remoteDir = getRemoteDir(name);
+        Map<String, String> refs = listRemoteRefs(remoteDir).branches;
+        String old = refs.get(branch);
+        String head = Repository.branches.get(Repository.head);
+        CommitGraph graph = CommitGraph.get();
+        if (old != null && (!graph.contains(old) || !graph.isAncestor(old, head))) {
+            Utils.exitWithMsg("Please pull down remote changes before pushing.");
+        }
+        List<String> haves = new ArrayList<>();
+        for (String hash: refs.values()) {
+            if (graph.contains(hash)) {
+                haves.add(hash);
+            }
+        }
+        writePack(join(remoteDir, Pack.PACK_DIR.getName()), head, haves,
+                Integer.MAX_VALUE, true);
+        String error = call(remoteDir, "receive-pack", branch, old == null ? "-" : old, head);
+        if (!error.isEmpty()) {
+            Utils.exitWithMsg(error);
+        }
+    }
+
+    /** Returns the commits this repository offers as known to a remote:
+     *  the head of every branch and its first-parent ancestors 1, 2, 4, 8,
+     *  ... commits back. */
+    private static List<String> getHaves() {
+        CommitGraph graph = CommitGraph.get();
+        Set<String> haves = new LinkedHashSet<>();
+        for (String hash: Repository.branches.values()) {
+            long distance = 0;
+            long next = 0;
+            while (hash != null) {
+                if (distance == next) {
+                    if (!haves.add(hash)) {
+                        // The rest of this history was offered already
+                        break;
+                    }
+                    next = Math.max(1, 2 * next);
+                }
+                List<String> parents = graph.getParents(hash);
+                hash = parents.isEmpty() ? null : parents.get(0);
+                distance += 1;
+            }
+        }
+        return new ArrayList<>(haves);
+    }
+
+    /** Writes a pack into DIR holding every commit reachable from WANT but
+     *  from none of HAVES, fewer than DEPTH parent links from WANT, with
+     *  the trees they add to their first parents, and the blobs too if
+     *  WITHBLOBS.  Writes nothing if there are no such commits.  Returns
+     *  those of the commits whose parents the receiver will lack. */
+    private static Set<String> writePack(File dir, String want, Collection<String> haves,
+                                         int depth, boolean withBlobs) {
+        CommitGraph graph = CommitGraph.get();
+        Set<String> boundary = new TreeSet<>();
+        List<String> commits = graph.missingFrom(want, haves, depth, boundary);
+        if (commits.isEmpty()) {
+            return boundary;
+        }
+        Set<String> trees = new LinkedHashSet<>();
+        Set<String> blobs = new LinkedHashSet<>();
+        Pack.Builder builder = new Pack.Builder(dir);
+        for (String hash: commits) {
+            if (Shallow.contains(hash)) {
+                // Nor does this repository have them
+                boundary.add(hash);
+            }
+            Commit commit = Commit.getCommit(hash);
+            List<String> parentHashes = graph.getParents(hash);
+            Tree old = parentHashes.isEmpty() || boundary.contains(hash) ? null
+                    : Commit.getCommit(parentHashes.get(0)).getTree();
+            commit.getTree().addNewObjects(old, trees, blobs);
+            builder.add(hash, Pack.COMMIT, ObjectStore.readCommit(hash));
+        }
+        for (String hash: trees) {
+            // Trees of older commits are worked out, not stored
+            byte[] data = ObjectStore.readTree(hash);
+            if (data != null) {
+                builder.add(hash, Pack.TREE, data);
+            }
+        }
+        if (withBlobs) {
+            ObjectStore.prefetchBlobs(blobs);
+            for (String hash: blobs) {
+                ObjectStore.packBlob(builder, hash);
+            }
+        }
+        builder.finish();
+        return boundary;
+    }
+
+    /** Adds HEAD and its ancestors that are not in the commit graph yet,
+     *  all of which must be stored, to the commit graph and commit log. */
+    private static void addCommits(String head) {
+        CommitGraph graph = CommitGraph.get();
+        Map<String, List<String>> parentsOf = new HashMap<>();
+        List<String> stack = new ArrayList<>();
+        stack.add(head);
+        while (!stack.isEmpty()) {
+            String hash = stack.remove(stack.size() - 1);
+            if (graph.contains(hash) || parentsOf.containsKey(hash)) {
+                continue;
+            }
+            Commit commit = Commit.getCommit(hash);
+            if (commit == null) {
+                throw Utils.error("Missing commit %s.", hash);
+            }
+            List<String> parentHashes = Shallow.getParents(hash, commit);
+            parentsOf.put(hash, parentHashes);
+            stack.addAll(parentHashes);
+        }
+        graph.addAll(parentsOf);
+        CommitLog log = CommitLog.get();
+        for (String hash: parentsOf.keySet()) {
+            log.add(hash, Commit.getCommit(hash));
+        }
+    }
+
+    /** Prints the current branch, then the head and name of every branch,
+     *  one per line. */
+    static void listRefs() {
+        System.out.println(Repository.head);
+        for (Map.Entry<String, String> branch: Repository.branches.entrySet()) {
+            System.out.println(branch.getValue() + " " + branch.getKey());
+        }
+    }
+
+    /** Writes a pack into the pack directory of the repository fetching
+     *  from this one.  ARGS are that directory, then either "--blobs" and
+     *  the ids of the blobs to send, or the options "--depth N" and
+     *  "--no-blobs", the commit wanted and the commits the fetching
+     *  repository has.  Prints "shallow ID" for each commit sent without
+     *  its parents. */
+    static void uploadPack(List<String> args) {
+        File dir = new File(args.get(0));
+        if (args.size() > 1 && args.get(1).equals("--blobs")) {
+            Pack.Builder builder = new Pack.Builder(dir);
+            for (String hash: args.subList(2, args.size())) {
+                ObjectStore.packBlob(builder, hash);
+            }
+            builder.finish();
+            return;
+        }
+        int depth = Integer.MAX_VALUE;
+        boolean withBlobs = true;
+        int i = 1;
+        while (i < args.size() && args.get(i).startsWith("--")) {
+            if (args.get(i).equals("--depth") && i + 1 < args.size()) {
+                depth = Integer.parseInt(args.get(i + 1));
+                i += 2;
+            } else if (args.get(i).equals("--no-blobs")) {
+                withBlobs = false;
+                i += 1;
+            } else {
+                Utils.exitWithMsg("Incorrect operands.");
+            }
+        }
+        if (i == args.size() || !CommitGraph.get().contains(args.get(i))) {
+            Utils.exitWithMsg("No commit with that id exists.");
+        }
+        for (String hash: writePack(dir, args.get(i), args.subList(i + 1, args.size()),
+                depth, withBlobs)) {
+            System.out.println("shallow " + hash);
+        }
+    }
+
+    /** Makes BRANCH point to NEWHASH, whose missing commits the pushing
+     *  repository has just packed into this one, if it still points to
+     *  OLDHASH, or does not exist and OLDHASH is "-". */
+    static void receivePack(String branch, String oldHash, String newHash) {
+        String current = Repository.branches.get(branch);
+        if (!(current == null ? "-" : current).equals(oldHash)) {
+            Utils.exitWithMsg("Please pull down remote changes before pushing.");
+        }
+        ObjectStore.reloadPacks();
+        addCommits(newHash);
+        Repository.branches.put(branch, newHash);
+    }
+}
@@ -0,0 +1,262 @@
+package gitlet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/** Finding the files of a change that were renamed or copied rather than
+ *  deleted and added.
+ *
+ *  A change is given as the paths it deleted and the paths it added, each
+ *  with its blob.  An added file whose blob is that of a deleted file is a
+ *  rename of it; blobs are named by their contents, so this costs nothing
+ *  but a hash table.  The deleted and added files left over are then
+ *  compared by content: each is read once and boiled down to a MinHash
+ *  sketch of its set of lines, SKETCH numbers whose agreement between two
+ *  files estimates the fraction of lines the two have in common.  Pairs
+ *  estimated to share at least MIN_SIMILARITY of their lines are renames,
+ *  the most similar first, each file taking part in at most one.
+ *  Comparing sketches is cheap, but every pair of a deleted and an added
+ *  file is compared, so when there are more than MAX_CANDIDATES pairs only
+ *  exact renames are looked for.  Empty files are never renames.
+ *
+ *  An added file that is not a rename but has the blob of some file of
+ *  the old tree is a copy of it.  Copies are only found exactly.
+ *
+ *  @author yyy
+ */
+class Renames {
+
+    /** Number of hash functions of a sketch. */
+    private static final int SKETCH = 64;
+
+    /** Least estimated fraction of lines in common of a rename that is not
+     *  exact. */
+    private static final double MIN_SIMILARITY = 0.5;
+
+    /** Most pairs of a deleted and an added file compared by content. */
+    private static final long MAX_CANDIDATES = 250000;
+
+    /** The id of the blob of an empty file. */
+    private static final String EMPTY_BLOB = Utils.sha1(new byte[0]);
+
+    /** Seeds of the hash functions of a sketch, fixed so sketches of the
+     *  same contents are always equal. */
+    private static final long[] SEEDS = new long[SKETCH];
+
+    static {
+        long seed = 0x676c6974L;
+        for (int k = 0; k < SKETCH; k += 1) {
+            seed = mix(seed + k);
+            SEEDS[k] = seed;
+        }
+    }
+
+    /** Returns the renames among the files DELETED and ADDED, which map
+     *  paths to blob ids: for each added path that is a renamed deleted
+     *  one, the deleted path, ordered by added path. */
+    static Map<String, String> find(Map<String, String> deleted, Map<String, String> added) {
+        Map<String, String> renames = new TreeMap<>();
+        if (deleted.isEmpty() || added.isEmpty()) {
+            return renames;
+        }
+        try (Trace.Span span = Trace.begin("find renames")) {
+            findExact(deleted, added, renames);
+            findSimilar(deleted, added, renames);
+        }
+        return renames;
+    }
+
+    /** Returns the copies among the files ADDED, which map paths to blob
+     *  ids, that are not keys of RENAMES: for each, a path of SOURCES, the
+     *  files of the old tree, with the same blob, ordered by added path. */
+    static Map<String, String> findCopies(Map<String, String> added, Map<String, String> renames,
+                                          Map<String, String> sources) {
+        Map<String, String> copies = new TreeMap<>();
+        Map<String, String> pathOf = new HashMap<>();
+        for (Map.Entry<String, String> source: new TreeMap<>(sources).entrySet()) {
+            pathOf.putIfAbsent(source.getValue(), source.getKey());
+        }
+        for (Map.Entry<String, String> file: new TreeMap<>(added).entrySet()) {
+            String source = pathOf.get(file.getValue());
+            if (source != null && !renames.containsKey(file.getKey())
+                    && !isEmpty(file.getValue())) {
+                copies.put(file.getKey(), source);
+            }
+        }
+        return copies;
+    }
+
+    /** Adds to RENAMES each file of ADDED whose blob is that of a file of
+     *  DELETED, preferring a deleted file of the same name to the first. */
+    private static void findExact(Map<String, String> deleted, Map<String, String> added,
+                                  Map<String, String> renames) {
+        Map<String, Deque<String>> byBlob = new HashMap<>();
+        for (String path: new TreeMap<>(deleted).keySet()) {
+            byBlob.computeIfAbsent(deleted.get(path), k -> new ArrayDeque<>()).add(path);
+        }
+        for (String path: new TreeMap<>(added).keySet()) {
+            String blob = added.get(path);
+            Deque<String> sources = byBlob.get(blob);
+            if (sources == null || sources.isEmpty() || isEmpty(blob)) {
+                continue;
+            }
+            String source = sources.peek();
+            for (String candidate: sources) {
+                if (baseName(candidate).equals(baseName(path))) {
+                    source = candidate;
+                    break;
+                }
+            }
+            sources.remove(source);
+            renames.put(path, source);
+        }
+    }
+
+    /** Adds to RENAMES the best pairs of the files of DELETED and ADDED not
+     *  in it yet that share enough lines, if there are few enough pairs. */
+    private static void findSimilar(Map<String, String> deleted, Map<String, String> added,
+                                    Map<String, String> renames) {
+        Set<String> used = new HashSet<>(renames.values());
+        List<String> sources = new ArrayList<>();
+        for (String path: new TreeMap<>(deleted).keySet()) {
+            if (!used.contains(path)) {
+                sources.add(path);
+            }
+        }
+        List<String> targets = new ArrayList<>();
+        for (String path: new TreeMap<>(added).keySet()) {
+            if (!renames.containsKey(path)) {
+                targets.add(path);
+            }
+        }
+        if (sources.isEmpty() || targets.isEmpty()
+                || (long) sources.size() * targets.size() > MAX_CANDIDATES) {
+            return;
+        }
+        Map<String, long[]> sketches = new HashMap<>();
+        for (String path: sources) {
+            sketches.computeIfAbsent(deleted.get(path), Renames::sketch);
+        }
+        for (String path: targets) {
+            sketches.computeIfAbsent(added.get(path), Renames::sketch);
+        }
+
+        List<Candidate> candidates = new ArrayList<>();
+        for (String target: targets) {
+            long[] b = sketches.get(added.get(target));
+            for (String source: sources) {
+                long[] a = sketches.get(deleted.get(source));
+                if (a == null || b == null) {
+                    continue;
+                }
+                double similarity = similarity(a, b);
+                if (similarity >= MIN_SIMILARITY) {
+                    candidates.add(new Candidate(source, target, similarity));
+                }
+            }
+        }
+        Collections.sort(candidates);
+        for (Candidate candidate: candidates) {
+            if (!used.contains(candidate.source) && !renames.containsKey(candidate.target)) {
+                used.add(candidate.source);
+                renames.put(candidate.target, candidate.source);
+            }
+        }
+    }
+
+    /** A possible rename of SOURCE to TARGET, most similar first, then by
+     *  paths. */
+    private static class Candidate implements Comparable<Candidate> {
+        private final String source;
+        private final String target;
+        private final double similarity;
+
+        Candidate(String source, String target, double similarity) {
+            this.source = source;
+            this.target = target;
+            this.similarity = similarity;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            int cmp = Double.compare(other.similarity, similarity);
+            if (cmp == 0) {
+                cmp = target.compareTo(other.target);
+            }
+            return cmp == 0 ? source.compareTo(other.source) : cmp;
+        }
+    }
+
+    /** Returns the MinHash sketch of the lines of blob HASH: for each seed,
+     *  the least hash of a line under it.  Returns null for an empty
+     *  blob. */
+    private static long[] sketch(String hash) {
+        List<ByteBuffer> lines = Diff.lines(ObjectStore.mapBlob(hash));
+        if (lines.isEmpty()) {
+            return null;
+        }
+        long[] result = new long[SKETCH];
+        Arrays.fill(result, Long.MAX_VALUE);
+        Set<ByteBuffer> seen = new HashSet<>();
+        for (ByteBuffer line: lines) {
+            if (!seen.add(line)) {
+                continue;
+            }
+            long lineHash = lineHash(line);
+            for (int k = 0; k < SKETCH; k += 1) {
+                long h = mix(lineHash ^ SEEDS[k]);
+                if (h < result[k]) {
+                    result[k] = h;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Returns the estimated fraction of lines that the files of sketches
+     *  A and B have in common. */
+    private static double similarity(long[] a, long[] b) {
+        int same = 0;
+        for (int k = 0; k < SKETCH; k += 1) {
+            if (a[k] == b[k]) {
+                same += 1;
+            }
+        }
+        return (double) same / SKETCH;
+    }
+
+    /** A 64 bit hash of the bytes of LINE. */
+    private static long lineHash(ByteBuffer line) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = line.position(); i < line.limit(); i += 1) {
+            h = (h ^ (line.get(i) & 0xff)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /** The finalizer of SplitMix64, which spreads every bit of X over the
+     *  result. */
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+
+    private static boolean isEmpty(String blobHash) {
+        return blobHash.equals(EMPTY_BLOB);
+    }
+
+    private static String baseName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+}
@@ -1,10 +1,17 @@
 package gitlet;
 
 import java.io.File;
-import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static gitlet.Utils.*;
 
@@ -25,78 +32,145 @@ public class Repository {
     static String head = null;
     // Store <branch name, commitHash> in tree map
     static TreeMap<String, String> branches = new TreeMap<>();
+    // Files of the next commit, read on first use by getIndex
+    static Index index = null;
 
     /** The current working directory. */
     public static final File CWD = new File(System.getProperty("user.dir"));
     /** The .gitlet directory. */
     public static final File GITLET_DIR = join(CWD, ".gitlet");
 
-    public static final File STAGE_DIR = join(GITLET_DIR, "Stage");
-
-    public static final File REMOVE_DIR = join(STAGE_DIR, "Remove");
-
     public static final File COMMIT_POINTER_DIR = join(GITLET_DIR, "PTR");
     public static final File HEAD_FILE = Utils.join(COMMIT_POINTER_DIR, "HEAD");
     public static final File BRANCHES_FILE = Utils.join(COMMIT_POINTER_DIR, "BRANCHES");
 
+    /** Fewest files hashed in parallel by stageFilesForAdd. */
+    private static final int PARALLEL_ADD = 16;
+
     /** Init a Gitlet version-control system */
     public static void initCommit() {
-        Date initDate = new Date(0);
-        Commit firstCommit = new Commit("initial commit", initDate.toString(), null);
-        String firstCommitHash = firstCommit.getHash();
-        File firstCommitFile = Commit.getCommitFile(firstCommitHash);
-        setupPersistence();
-        if (!firstCommitFile.exists()) {
+        if (!GITLET_DIR.exists()) {
+            setupPersistence();
+            Commit firstCommit = new Commit("initial commit", 0);
             Commit.writeCommit(firstCommit);
             head = "master";
-            updateCommitPointers(firstCommitHash);
+            updateCommitPointers(firstCommit.getHash());
         } else {
             Utils.message("A Gitlet version-control system already exists in the current directory.");
         }
     }
 
     public static void stageFileForAdd(File fileToAdd){
-        Commit curCommit = Commit.getCommit(branches.get(head));
         if (!fileToAdd.exists()) {
             Utils.exitWithMsg("File does not exist.");
         }
-        String fileName = fileToAdd.getName();
-        File stagedFile = Utils.join(STAGE_DIR, fileName);
-        File stagedToRemoveFile = join(REMOVE_DIR, fileName);
-        // If staged for removal, remove it from remove dir
-        if (stagedToRemoveFile.exists()) {
-            Utils.restrictedDelete(stagedToRemoveFile);
-        }
-        if (curCommit.hasBlob(fileToAdd)) {
-            if (stagedFile.exists()) {
-                // Removed staged file if the file to add is the same as committed one
-                Utils.restrictedDelete(stagedFile);
+        stageFilesForAdd(Collections.singletonList(fileToAdd));
+    }
+
+    /** Stages FILES, plain files of the working directory.  They are
+     *  hashed, and their blobs stored, in parallel on the common
+     *  ForkJoinPool when there are enough of them, and then all go into
+     *  the index at once. */
+    public static void stageFilesForAdd(List<File> files) {
+        Index index = getIndex();
+        Stream<File> stream = files.size() < PARALLEL_ADD ? files.stream() : files.parallelStream();
+        List<Staged> staged = stream.map(file -> {
+            Index.Entry stat = Index.stat(file);
+            String hash = index.getUnchangedHash(file, stat);
+            return new Staged(file, stat, hash != null ? hash : Utils.getFileHash(file));
+        }).collect(Collectors.toList());
+        // Files with the same contents share a blob, which must be
+        // written only once
+        Map<String, File> blobs = new HashMap<>();
+        for (Staged file: staged) {
+            blobs.putIfAbsent(file.hash, file.file);
+        }
+        Stream<Map.Entry<String, File>> writes = blobs.size() < PARALLEL_ADD
+                ? blobs.entrySet().stream() : blobs.entrySet().parallelStream();
+        writes.forEach(blob -> ObjectStore.writeBlob(blob.getValue(), blob.getKey()));
+        // A file identical to the committed one is simply not a change,
+        // and adding it undoes any staged removal
+        for (Staged file: staged) {
+            index.add(file.file, file.hash, file.stat);
+        }
+    }
+
+    /** A working file to stage, with its stat data and hash. */
+    private static class Staged {
+        private final File file;
+        private final Index.Entry stat;
+        private final String hash;
+
+        Staged(File file, Index.Entry stat, String hash) {
+            this.file = file;
+            this.stat = stat;
+            this.hash = hash;
+        }
+    }
+
+    /** Returns the working files named by PATHS, in order and without
+     *  repeats.  A path may name a file, a directory, for every file below
+     *  it, or be a glob such as *.txt or src/**.java matched against the
+     *  paths of all working files.  Exits with a message if a path names
+     *  no file. */
+    public static List<File> findWorkingFiles(List<String> paths) {
+        List<String> workingFiles = null;
+        Set<String> result = new TreeSet<>();
+        for (String path: paths) {
+            File file = Utils.join(CWD, path).toPath().normalize().toFile();
+            boolean glob = path.matches(".*[*?\\[{].*");
+            if (file.isFile() && !glob) {
+                result.add(Index.nameOf(file));
+                continue;
+            }
+            if (!file.isDirectory() && !glob) {
+                Utils.exitWithMsg("File does not exist.");
+            }
+            if (workingFiles == null) {
+                workingFiles = getWorkingFiles();
+            }
+            if (glob) {
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + path);
+                boolean matched = false;
+                for (String name: workingFiles) {
+                    if (matcher.matches(Paths.get(name))) {
+                        result.add(name);
+                        matched = true;
+                    }
+                }
+                if (!matched) {
+                    Utils.exitWithMsg("File does not exist.");
+                }
+            } else {
+                String prefix = Index.nameOf(file);
+                prefix = prefix.isEmpty() ? "" : prefix + "/";
+                for (String name: workingFiles) {
+                    if (name.startsWith(prefix)) {
+                        result.add(name);
+                    }
+                }
             }
-        } else {
-            Utils.copyFileTo(fileToAdd, stagedFile);
         }
+        List<File> files = new ArrayList<>();
+        for (String name: result) {
+            files.add(Utils.join(CWD, name));
+        }
+        return files;
     }
 
     public static void stageFileForRemove(File fileToRemove) {
         Commit curCommit = Commit.getCommit(branches.get(head));
-        String fileName = fileToRemove.getName();
-        File stagedFile = join(STAGE_DIR, fileName);
-        File stagedToRemoveFile = join(REMOVE_DIR, fileName);
-        if (!(stagedFile.exists() || curCommit.hasFile(fileName))) {
+        Index index = getIndex();
+        String fileName = Index.nameOf(fileToRemove);
+        boolean staged = index.contains(fileName) && !curCommit.hasBlob(fileName, index.getHash(fileName));
+        if (!(staged || curCommit.hasFile(fileName))) {
             Utils.exitWithMsg("No reason to remove the file");
         }
-        if (stagedFile.exists()) {
-            Utils.restrictedDelete(stagedFile);
-        }
+        index.remove(fileName);
         if (curCommit.hasFile(fileName)) {
             /* Remove the file from working directory and stage for removal */
             if (fileToRemove.exists()) {
-                Utils.restrictedDelete(fileToRemove);
-            }
-            try {
-                stagedToRemoveFile.createNewFile();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                Utils.deleteWorkingFile(fileToRemove, CWD);
             }
         }
     }
@@ -111,75 +185,167 @@ public class Repository {
         if (message.isEmpty()) {
             Utils.exitWithMsg("Please enter a commit message.");
         }
-        List<String> filesToAdd = Utils.plainFilenamesIn(STAGE_DIR);
-        List<String> filesToRemove = Utils.plainFilenamesIn(REMOVE_DIR);
-        if ((filesToAdd == null || filesToAdd.isEmpty()) &&
-                (filesToRemove == null || filesToRemove.isEmpty())) {
+        Commit curCommit = Commit.getCommit(branches.get(head));
+        List<String> filesToAdd = getStagedFiles(curCommit);
+        List<String> filesToRemove = getRemovedFiles(curCommit);
+        if (filesToAdd.isEmpty() && filesToRemove.isEmpty()) {
             Utils.exitWithMsg("No changes added to the commit.");
         }
-        Commit curCommit = Commit.getCommit(branches.get(head));
         Commit newCommit = curCommit.makeCopy(message);
-        /* Update blobs according to staging area */
-        if (filesToAdd != null) {
-            for (String fileName: filesToAdd) {
-                File file = new File(STAGE_DIR, fileName);
-                String fileHash = Utils.getFileHash(file);
-                newCommit.addBlob(fileName, fileHash);
-                Utils.moveFileTo(file, Commit.getBlobFile(fileHash, fileName));
+        /* Update blobs according to the index; staged blobs are already stored */
+        for (String fileName: filesToAdd) {
+            newCommit.addBlob(fileName, getIndex().getHash(fileName));
+        }
+        for (String fileName: filesToRemove) {
+            newCommit.removeBlob(fileName);
+        }
+        return newCommit;
+    }
+
+    /** Prints the files of STAGEDFILES not in COMMIT that are renames of
+     *  files of REMOVEDFILES or copies of files of COMMIT, if there are
+     *  any. */
+    private static void printStagedRenames(Commit commit, List<String> stagedFiles,
+                                           List<String> removedFiles) {
+        Index index = getIndex();
+        Map<String, String> added = new HashMap<>();
+        for (String fileName: stagedFiles) {
+            if (!commit.hasFile(fileName)) {
+                added.put(fileName, index.getHash(fileName));
             }
         }
-        if (filesToRemove != null) {
-            for (String fileName: filesToRemove) {
-                File file = new File(REMOVE_DIR, fileName);
-                newCommit.removeBlob(fileName);
-                /* Delete staging remove file */
-                Utils.restrictedDelete(file);
+        if (added.isEmpty()) {
+            return;
+        }
+        Map<String, String> deleted = new HashMap<>();
+        for (String fileName: removedFiles) {
+            deleted.put(fileName, commit.getFileHash(fileName));
+        }
+        Map<String, String> renames = Renames.find(deleted, added);
+        Map<String, String> copies = Renames.findCopies(added, renames, commit.getFileHashes());
+        if (renames.isEmpty() && copies.isEmpty()) {
+            return;
+        }
+        System.out.println("=== Renamed Files ===");
+        for (String fileName: stagedFiles) {
+            if (renames.containsKey(fileName)) {
+                System.out.println(renames.get(fileName) + " -> " + fileName);
+            } else if (copies.containsKey(fileName)) {
+                System.out.println(copies.get(fileName) + " -> " + fileName + " (copy)");
             }
         }
-        return newCommit;
+        System.out.println();
+    }
+
+    /** Returns the files of the index that differ from COMMIT, in order. */
+    private static List<String> getStagedFiles(Commit commit) {
+        Index index = getIndex();
+        List<String> files = new ArrayList<>();
+        for (String fileName: getIndexChanges(commit)) {
+            if (index.contains(fileName)) {
+                files.add(fileName);
+            }
+        }
+        return files;
     }
 
-    public static void printCommit(Commit commit) {
-        LinkedList<String> parentHashes = commit.getParentHashes();
-        System.out.println("===");
-        System.out.printf("commit %s\n", commit.getHash());
+    /** Returns the files of COMMIT missing from the index, in order. */
+    private static List<String> getRemovedFiles(Commit commit) {
+        Index index = getIndex();
+        List<String> files = new ArrayList<>();
+        for (String fileName: getIndexChanges(commit)) {
+            if (!index.contains(fileName)) {
+                files.add(fileName);
+            }
+        }
+        return files;
+    }
+
+    /** Returns the files that differ between the index and COMMIT, in
+     *  order.  Directories the two agree on are not looked into. */
+    private static List<String> getIndexChanges(Commit commit) {
+        List<String> files = new ArrayList<>();
+        Tree.diff(commit.getTree(), getIndex().getTree(), "", files);
+        Collections.sort(files);
+        return files;
+    }
+
+    /** Returns the path of every file under the working directory, except
+     *  those of the repository itself, in order. */
+    static List<String> getWorkingFiles() {
+        List<String> files = new ArrayList<>();
+        Trace.count(Trace.Counter.DIRS_LISTED, 1);
+        File[] entries = CWD.listFiles();
+        if (entries != null) {
+            for (File entry: entries) {
+                if (entry.isFile()) {
+                    files.add(entry.getName());
+                } else if (entry.isDirectory() && !entry.equals(GITLET_DIR)) {
+                    for (File file: Utils.filesIn(entry)) {
+                        files.add(Index.nameOf(file));
+                    }
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    public static void printCommit(PrintStream out, Commit commit) {
+        printCommit(out, commit.getHash(), commit.getParentHashes(), commit.getTimestamp(),
+                commit.getMessage());
+    }
+
+    public static void printCommit(PrintStream out, String hash, List<String> parentHashes,
+                                   long timestamp, String message) {
+        out.println("===");
+        out.print("commit ");
+        out.println(hash);
         if (parentHashes.size() > 1) {
-            System.out.printf("Merge: %s %s\n", parentHashes.get(0).substring(0, 7), parentHashes.get(1).substring(0, 7));
+            out.printf("Merge: %s %s\n", parentHashes.get(0).substring(0, 7), parentHashes.get(1).substring(0, 7));
         }
-        System.out.printf("Date: %s\n", Utils.getFormattedDate(new Date(commit.getDateCreated())));
-        System.out.println(commit.getMessage());
-        System.out.println();
+        out.print("Date: ");
+        out.println(Utils.getFormattedDate(new Date(timestamp)));
+        out.println(message);
+        out.println();
     }
 
-    public static void printLog() {
-        Commit curCommit = Commit.getCommit(branches.get(head));
-        while (curCommit != null) {
-            printCommit(curCommit);
-            LinkedList<String> parentHashes = curCommit.getParentHashes();
-            curCommit = null;
-            if (!parentHashes.isEmpty()) {
-                curCommit = Commit.getCommit(parentHashes.get(0));
+    /** Prints the first-parent history of HEAD, newest first: at most
+     *  MAXCOUNT commits, stopping at the first made before SINCE, in
+     *  milliseconds since the epoch.  Commits are read only as they are
+     *  printed, and printing stops as soon as the output is closed, so
+     *  log | head reads only the commits head shows. */
+    public static void printLog(int maxCount, long since) {
+        PrintStream out = Utils.bufferedOut();
+        Iterator<Commit> history = History.of(branches.get(head)).iterator();
+        for (int count = 0; count < maxCount && history.hasNext(); count += 1) {
+            Commit commit = history.next();
+            if (commit.getTimestamp() < since || System.out.checkError()) {
+                break;
             }
+            printCommit(out, commit);
         }
+        out.flush();
     }
 
     public static void printGlobalLog() {
-        List<Commit> commits = getAllCommits();
-        for (Commit commit: commits) {
-            printCommit(commit);
+        PrintStream out = Utils.bufferedOut();
+        for (CommitLog.Entry entry: CommitLog.get().all()) {
+            if (System.out.checkError()) {
+                break;
+            }
+            printCommit(out, entry.getHash(), entry.getParentHashes(), entry.getTimestamp(),
+                    entry.getMessage());
         }
+        out.flush();
     }
 
     public static void printCommitByMessage(String msg) {
-        List<Commit> commits = getAllCommits();
-        boolean found = false;
-        for (Commit commit: commits) {
-            if (commit.getMessage().contains(msg)) {
-                System.out.println(commit.getHash());
-                found = true;
-            }
+        List<String> commitHashes = CommitLog.get().find(msg);
+        for (String commitHash: commitHashes) {
+            System.out.println(commitHash);
         }
-        if (!found) {
+        if (commitHashes.isEmpty()) {
             System.out.println("Found no commit with that message.");
         }
     }
@@ -198,70 +364,64 @@ public class Repository {
         System.out.println();
 
         // Print staged files
+        Commit curCommit = Commit.getCommit(branches.get(head));
+        List<String> stagedFiles = getStagedFiles(curCommit);
         System.out.println("=== Staged Files ===");
-        List<String> filesToAdd = Utils.plainFilenamesIn(STAGE_DIR);
-        if (filesToAdd != null) {
-            Collections.sort(filesToAdd);
-            for (String file: filesToAdd) {
-                System.out.println(file);
-            }
+        for (String file: stagedFiles) {
+            System.out.println(file);
         }
         System.out.println();
 
         // Print removed files
+        List<String> removedFiles = getRemovedFiles(curCommit);
         System.out.println("=== Removed Files ===");
-        List<String> filesToRemove = Utils.plainFilenamesIn(REMOVE_DIR);
-        if (filesToRemove != null) {
-            Collections.sort(filesToRemove);
-            for (String file: filesToRemove) {
-                System.out.println(file);
-            }
+        for (String file: removedFiles) {
+            System.out.println(file);
         }
         System.out.println();
 
-        // Print modified but not staged files
-        Commit curCommit = Commit.getCommit(branches.get(head));
-        List<String> workingFiles = Utils.plainFilenamesIn(CWD);
-        List<String> commitedFiles = new ArrayList<>(curCommit.getFiles());
-        List<String> untrackedFiles = new ArrayList<>();
-        List<String> modifiedFiles = new ArrayList<>();
-        List<String> deletedFiles = new ArrayList<>();
-
-        if (workingFiles != null) {
-            Collections.sort(workingFiles);
-            for (String workingFile: workingFiles) {
-                if (!commitedFiles.contains(workingFile)) {
-                    if (filesToAdd.contains(workingFile)) {
-                        //TODO: implement this later
-                    }
-                }
+        // Print staged renames and copies, if there are any
+        printStagedRenames(curCommit, stagedFiles, removedFiles);
+
+        // Print modified but not staged files; only files whose stat data
+        // changed since they were staged get rehashed
+        Index index = getIndex();
+        List<String> workingFiles = getWorkingFiles();
+        System.out.println("=== Modifications Not Staged For Commit ===");
+        for (String fileName: index.getFiles()) {
+            File workingFile = Utils.join(CWD, fileName);
+            if (!workingFile.isFile()) {
+                System.out.println(fileName + " (deleted)");
+            } else if (!index.getWorkingHash(workingFile).equals(index.getHash(fileName))) {
+                System.out.println(fileName + " (modified)");
             }
         }
-        System.out.println("=== Modifications Not Staged For Commit ===");
+        System.out.println();
 
         // print untracked files
-        System.out.println();
         System.out.println("=== Untracked Files ===");
+        for (String workingFile: workingFiles) {
+            if (!index.contains(workingFile)) {
+                System.out.println(workingFile);
+            }
+        }
         System.out.println();
     }
 
     public static void checkoutFile(String commitHash, String fileName) {
         if (commitHash == null) {
             commitHash = branches.get(head);
-        } else {
-            updateCommitPointers(commitHash);
         }
         commitHash = Commit.getCompleteCommitHash(commitHash);
         Commit commit = Commit.getCommit(commitHash);
         if (commit == null) {
-            Utils.exitWithMsg("No commit with that id exists");
+            Utils.exitWithMsg("No commit with that id exists.");
         }
         if (!commit.hasFile(fileName)) {
             Utils.exitWithMsg("File does not exist in that commit.");
         }
         File workingFile = Utils.join(CWD, fileName);
-        File blobFile = Commit.getBlobFile(commit.getFileHash(fileName), fileName);
-        Utils.copyFileTo(blobFile, workingFile);
+        ObjectStore.copyBlobTo(commit.getFileHash(fileName), workingFile);
     }
 
     public static void checkoutBranch(String branchName) {
@@ -296,10 +456,9 @@ public class Repository {
 
     public static void resetToCommit(String commitHash) {
         commitHash = Commit.getCompleteCommitHash(commitHash);
-        File commitFile =  Utils.join(Commit.COMMIT_DIR, commitHash.substring(0, 2), commitHash.substring(2));
         String headHash = branches.get(head);
-        if (!commitFile.exists() || (!hasAscendentCommit(Commit.getCommit(headHash), commitHash) &&
-                !hasAscendentCommit(Commit.getCommit(commitHash), headHash))) {
+        if (!Commit.checkCommitExist(commitHash) || (!hasAscendentCommit(headHash, commitHash) &&
+                !hasAscendentCommit(commitHash, headHash))) {
             Utils.exitWithMsg("No commit with that id exists.");
         }
         checkUntrackedFiles();
@@ -309,36 +468,10 @@ public class Repository {
     public static void checkoutCommit(String oldCommitHash, String newCommitHash) {
         Commit curCommit = Commit.getCommit(oldCommitHash);
         Commit checkedoutCommit = Commit.getCommit(newCommitHash);
-        List<String> workingFiles = Utils.plainFilenamesIn(CWD);
-        if (workingFiles != null) {
-            // Remove files not tracked in checked-out branch
-            for (String workingFileName: workingFiles) {
-                if (!checkedoutCommit.hasFile(workingFileName)) {
-                    File workingFile = Utils.join(CWD, workingFileName);
-                    Utils.restrictedDelete(workingFile);
-                }
-            }
-        }
-
-        // Put files from latest commit of checkout branch in working directory
-        for (String checkoutBlobName: checkedoutCommit.getFiles()) {
-            File workingFile = Utils.join(CWD, checkoutBlobName);
-            File checkoutBlobFile = Commit.getBlobFile(checkedoutCommit.getFileHash(checkoutBlobName), checkoutBlobName);
-            Utils.copyFileTo(checkoutBlobFile, workingFile);
-        }
-
-        // Clear staging area
-        File[] filesToAdd = STAGE_DIR.listFiles();
-        if (filesToAdd != null) {
-            for (File file: filesToAdd) {
-                restrictedDelete(file);
-            }
-        }
-        File[] filesToRemove = REMOVE_DIR.listFiles();
-        if (filesToRemove != null) {
-            for (File file: filesToRemove) {
-                restrictedDelete(file);
-            }
+        // Only paths that differ between the index and the checked-out commit
+        // are touched; this also clears the staging area
+        try (Trace.Span span = Trace.begin("checkout")) {
+            Checkout.apply(checkedoutCommit, getIndex(), CWD);
         }
         updateCommitPointers(newCommitHash);
     }
@@ -356,125 +489,204 @@ public class Repository {
         }
         checkUntrackedFiles();
 
-        Commit curCommit = Commit.getCommit(branches.get(head));
-        Commit otherCommit = Commit.getCommit(branches.get(branchName));
-        Commit splitPoint = getLastSplitPoint(curCommit, otherCommit);
-        if (otherCommit.getHash().equals(splitPoint.getHash())) {
+        String curCommitHash = branches.get(head);
+        String otherCommitHash = branches.get(branchName);
+        String splitPointHash = getLastSplitPoint(curCommitHash, otherCommitHash);
+        if (otherCommitHash.equals(splitPointHash)) {
             Utils.exitWithMsg("Given branch is an ancestor of the current branch.");
         }
-        if (curCommit.getHash().equals(splitPoint.getHash())) {
-            checkoutBranch(branchName);
-            Utils.exitWithMsg("Current branch fast-forwarded.");
-        }
-        Set<String> allFiles = new HashSet<>();
-        allFiles.addAll(curCommit.getFiles());
-        allFiles.addAll(otherCommit.getFiles());
-        allFiles.addAll(splitPoint.getFiles());
-        for (String fileName: allFiles) {
+        if (curCommitHash.equals(splitPointHash)) {
+            // The current branch moves to the given commit; HEAD stays on it
+            checkoutCommit(curCommitHash, otherCommitHash);
+            System.out.print("Current branch fast-forwarded.");
+            return;
+        }
+        Commit curCommit = Commit.getCommit(curCommitHash);
+        Commit otherCommit = Commit.getCommit(otherCommitHash);
+        Commit splitPoint = Commit.getCommit(splitPointHash);
+        // Only files changed since the split point on either side matter,
+        // and directories unchanged on a side are not looked into
+        Set<String> changedFiles = new TreeSet<>();
+        try (Trace.Span span = Trace.begin("diff trees")) {
+            Tree splitTree = splitPoint.getTree();
+            Tree.diff(splitTree, curCommit.getTree(), "", changedFiles);
+            Tree.diff(splitTree, otherCommit.getTree(), "", changedFiles);
+        }
+        Set<String> renamedFiles = mergeRenamedFiles(splitPoint, curCommit, otherCommit, changedFiles);
+        for (String fileName: changedFiles) {
+            if (renamedFiles.contains(fileName)) {
+                continue;
+            }
             String orgFileHash = splitPoint.getFileHash(fileName);
             String curFileHash = curCommit.getFileHash(fileName);
             String otherFileHash = otherCommit.getFileHash(fileName);
-            File orgFile = null;
-            File curFile = null;
-            File otherFile = null;
-            String orgFileContent = null;
-            String curFileContent = null;
-            String otherFileContent = null;
-
-            if (orgFileHash != null) {
-                orgFile = Commit.getBlobFile(orgFileHash, fileName);
-                orgFileContent = Utils.readContentsAsString(orgFile);
+            File workingFile = Utils.join(CWD, fileName);
+            // Blobs are named by their contents, so only files changed on
+            // both sides ever need to be read
+            if (Objects.equals(curFileHash, otherFileHash) || Objects.equals(otherFileHash, orgFileHash)) {
+                // Same in HEAD and other, or modified in HEAD only: leave it unchanged
+                continue;
             }
-            if (curFileHash != null) {
-                curFile = Commit.getBlobFile(curFileHash,  fileName);
-                curFileContent = Utils.readContentsAsString(curFile);
-            }
-            if (otherFileHash != null) {
-                otherFile = Commit.getBlobFile(otherFileHash, fileName);
-                otherFileContent = Utils.readContentsAsString(otherFile);
-            }
-
-            if (curFileHash != null && otherFileHash != null) {
-                if (curFileContent.equals(orgFileContent) && !otherFileContent.equals(orgFileContent)) {
-                    // Modified in other but not HEAD, stage it
-                    Utils.copyFileTo(otherFile, Utils.join(CWD, fileName));
-                    stageFileForAdd(otherFile);
-                } else if (!curFileContent.equals(orgFileContent) && !otherFileContent.equals(orgFileContent)) {
-                    // Modified in both other and HEAD in different way,
-                    // put them into one file then stage. Print encounter merge conflict
-                    writeMergeFile(curFileContent, otherFileContent, fileName);
-                }
-                // Modified in HEAD but not in other, leave it unchanged
-                // Modified in both other and HEAD in same way, leave it unchanged.
-            } else if (curFileHash != null) {
-                // Unmodified in HEAD but not present in other, remove it
-                if (curFileContent.equals(orgFileContent)) {
-                    stageFileForRemove(curFile);
-                    Utils.restrictedDelete(Utils.join(CWD, fileName));
-                } else if (orgFileHash != null) {
-                    // Modified in HEAD but removed in other
-                    writeMergeFile(curFileContent, "", fileName);
-                }
-                // Unmodified in other but not present in HEAD, remain removed
-            } else if (orgFileHash != null && otherFileHash != null) {
-                if (!otherFileContent.equals(orgFileContent)) {
-                    // Modified in other but removed in HEAD
-                    writeMergeFile("", otherFileContent, fileName);
-                }
-            } else if (orgFileHash == null) {
-                // Not in split nor other but in HEAD, leave it unchanged
-                if (otherFileHash != null) {
-                    // Not in split nor HEAD but in other, stage it
-                    Utils.copyFileTo(otherFile, Utils.join(CWD, fileName));
-                    stageFileForAdd(otherFile);
+            if (Objects.equals(curFileHash, orgFileHash)) {
+                // Modified or removed in other only
+                if (otherFileHash == null) {
+                    stageFileForRemove(workingFile);
+                } else {
+                    ObjectStore.copyBlobTo(otherFileHash, workingFile);
+                    stageFileForAdd(workingFile);
                 }
+                continue;
             }
+            mergeFile(orgFileHash, curFileHash, otherFileHash, fileName);
         }
         // Make merge commit
         Commit mergeCommit = makeNewCommit(String.format("Merged %s into %s.", branchName, head));
-        mergeCommit.addParentHash(otherCommit.getHash());
+        mergeCommit.addParentHash(otherCommitHash);
         Commit.writeCommit(mergeCommit);
         updateCommitPointers(mergeCommit.getHash());
     }
 
-    private static void writeMergeFile(String curFileContent, String otherFileContent, String fileName) {
-        String mergeFileContent = "<<<<<<< HEAD\n";
-        mergeFileContent += curFileContent;
-        mergeFileContent += "=======\n";
-        mergeFileContent += otherFileContent;
-        mergeFileContent += ">>>>>>>\n";
+    /** Merges the files among CHANGEDFILES that HEAD, CURCOMMIT, or the
+     *  other branch, OTHERCOMMIT, renamed since SPLITPOINT while the other
+     *  side kept them under their old names, so that a file renamed on one
+     *  side and changed on the other ends up renamed and changed.  Returns
+     *  the old and new paths of the files merged.  Files both sides
+     *  renamed alike are merged from their old contents too; files renamed
+     *  differently, or to a path the other side added, are merged as
+     *  removed and added files. */
+    private static Set<String> mergeRenamedFiles(Commit splitPoint, Commit curCommit, Commit otherCommit,
+                                                 Set<String> changedFiles) {
+        Map<String, String> curRenames = findRenames(splitPoint, curCommit, changedFiles);
+        Map<String, String> otherRenames = findRenames(splitPoint, otherCommit, changedFiles);
+        Set<String> merged = new HashSet<>();
+        for (Map.Entry<String, String> rename: otherRenames.entrySet()) {
+            String newName = rename.getKey();
+            String oldName = rename.getValue();
+            if (oldName.equals(curRenames.get(newName))) {
+                mergeRenamedFile(splitPoint, curCommit, otherCommit, oldName, newName, newName);
+            } else if (curCommit.getFileHash(oldName) != null && curCommit.getFileHash(newName) == null) {
+                mergeRenamedFile(splitPoint, curCommit, otherCommit, oldName, oldName, newName);
+            } else {
+                continue;
+            }
+            merged.add(oldName);
+            merged.add(newName);
+        }
+        for (Map.Entry<String, String> rename: curRenames.entrySet()) {
+            String newName = rename.getKey();
+            String oldName = rename.getValue();
+            if (!merged.contains(newName) && otherCommit.getFileHash(oldName) != null
+                    && otherCommit.getFileHash(newName) == null) {
+                mergeRenamedFile(splitPoint, curCommit, otherCommit, oldName, newName, oldName);
+                merged.add(oldName);
+                merged.add(newName);
+            }
+        }
+        return merged;
+    }
+
+    /** Returns the renames by COMMIT, since SPLITPOINT, among CHANGEDFILES:
+     *  for each new path, the old one. */
+    private static Map<String, String> findRenames(Commit splitPoint, Commit commit,
+                                                   Set<String> changedFiles) {
+        Map<String, String> deleted = new HashMap<>();
+        Map<String, String> added = new HashMap<>();
+        for (String fileName: changedFiles) {
+            String orgFileHash = splitPoint.getFileHash(fileName);
+            String fileHash = commit.getFileHash(fileName);
+            if (fileHash == null && orgFileHash != null) {
+                deleted.put(fileName, orgFileHash);
+            } else if (orgFileHash == null && fileHash != null) {
+                added.put(fileName, fileHash);
+            }
+        }
+        return Renames.find(deleted, added);
+    }
+
+    /** Merges the file that was ORGNAME at SPLITPOINT, is CURNAME in HEAD,
+     *  CURCOMMIT, and OTHERNAME in the other branch, OTHERCOMMIT, into the
+     *  new one of the two names, removing the old one if HEAD has it. */
+    private static void mergeRenamedFile(Commit splitPoint, Commit curCommit, Commit otherCommit,
+                                         String orgName, String curName, String otherName) {
+        String orgFileHash = splitPoint.getFileHash(orgName);
+        String curFileHash = curCommit.getFileHash(curName);
+        String otherFileHash = otherCommit.getFileHash(otherName);
+        String newName = curName.equals(orgName) ? otherName : curName;
+        File newFile = Utils.join(CWD, newName);
+        if (Objects.equals(curFileHash, otherFileHash) || Objects.equals(otherFileHash, orgFileHash)) {
+            // HEAD's contents, which only need moving if HEAD did not
+            if (!newName.equals(curName)) {
+                ObjectStore.copyBlobTo(curFileHash, newFile);
+                stageFileForAdd(newFile);
+            }
+        } else if (Objects.equals(curFileHash, orgFileHash)) {
+            ObjectStore.copyBlobTo(otherFileHash, newFile);
+            stageFileForAdd(newFile);
+        } else {
+            mergeFile(orgFileHash, curFileHash, otherFileHash, newName);
+        }
+        if (!newName.equals(curName)) {
+            stageFileForRemove(Utils.join(CWD, curName));
+        }
+    }
+
+    /** Merges FILENAME, which was changed differently in HEAD, where its
+     *  blob is CURFILEHASH, and in the other branch, where it is
+     *  OTHERFILEHASH, since the split point, where it was ORGFILEHASH.  A
+     *  file removed on one side conflicts as a whole; otherwise only the
+     *  lines changed on both sides do. */
+    private static void mergeFile(String orgFileHash, String curFileHash, String otherFileHash,
+                                  String fileName) {
+        ByteBuffer curFileContent = mapBlobOrEmpty(curFileHash);
+        ByteBuffer otherFileContent = mapBlobOrEmpty(otherFileHash);
+        List<ByteBuffer> mergeFileContent;
+        boolean conflict;
+        if (curFileHash == null || otherFileHash == null) {
+            mergeFileContent = Arrays.asList(Merge.OURS_MARKER, curFileContent,
+                    Merge.SEPARATOR, otherFileContent, Merge.THEIRS_MARKER);
+            conflict = true;
+        } else {
+            ByteBuffer orgFileContent = mapBlobOrEmpty(orgFileHash);
+            Merge merge;
+            try (Trace.Span span = Trace.begin("merge text")) {
+                merge = Merge.merge(orgFileContent, curFileContent, otherFileContent);
+            }
+            mergeFileContent = merge.getText();
+            conflict = merge.hasConflict();
+        }
         File mergeFile = Utils.join(CWD, fileName);
-        writeContents(mergeFile, mergeFileContent);
+        mergeFile.getParentFile().mkdirs();
+        Utils.writeContents(mergeFile, mergeFileContent);
         stageFileForAdd(mergeFile);
-        System.out.print("Encountered a merge conflict.");
+        if (conflict) {
+            System.out.print("Encountered a merge conflict.");
+        }
+    }
+
+    /** Returns the contents of blob HASH, or no bytes if HASH is null. */
+    private static ByteBuffer mapBlobOrEmpty(String hash) {
+        return hash == null ? ByteBuffer.allocate(0) : ObjectStore.mapBlob(hash);
     }
 
     public static void setupPersistence() {
         GITLET_DIR.mkdir();
         Commit.BLOB_DIR.mkdir();
+        Commit.TREE_DIR.mkdir();
         Commit.COMMIT_DIR.mkdir();
-        STAGE_DIR.mkdir();
-        REMOVE_DIR.mkdir();
         COMMIT_POINTER_DIR.mkdir();
     }
 
 
     public static boolean hasStagedFiles() {
-        List<String> filesToAdd = Utils.plainFilenamesIn(STAGE_DIR);
-        List<String> filesToRemove = Utils.plainFilenamesIn(REMOVE_DIR);
-        return (filesToAdd != null && !filesToAdd.isEmpty()) ||
-                (filesToRemove != null && !filesToRemove.isEmpty());
+        Commit curCommit = Commit.getCommit(branches.get(head));
+        return !curCommit.getTree().getHash().equals(getIndex().getTree().getHash());
     }
 
     public static void checkUntrackedFiles() {
-        Commit curCommit = Commit.getCommit(branches.get(head));
-        List<String> workingFiles = Utils.plainFilenamesIn(CWD);
-        if (workingFiles != null) {
-            for (String workingFileName: workingFiles) {
-                File stagedFile = Utils.join(STAGE_DIR, workingFileName);
-                if (!curCommit.hasFile(workingFileName) && !stagedFile.exists()) {
-                    Utils.exitWithMsg("There is an untracked file in the way; delete it, or add and commit it first.");
-                }
+        Index index = getIndex();
+        for (String workingFileName: getWorkingFiles()) {
+            if (!index.contains(workingFileName)) {
+                Utils.exitWithMsg("There is an untracked file in the way; delete it, or add and commit it first.");
             }
         }
     }
@@ -485,32 +697,20 @@ public class Repository {
         }
     }
 
-    public static boolean hasAscendentCommit(Commit commit, String checkCommitHash) {
-        BreadFirstPaths depthMap = (new BreadFirstPaths(commit));
-        return depthMap.hasPathTo(checkCommitHash);
+    /** Whether CHECKCOMMITHASH is COMMITHASH or one of its ancestors. */
+    public static boolean hasAscendentCommit(String commitHash, String checkCommitHash) {
+        return CommitGraph.get().isAncestor(checkCommitHash, commitHash);
     }
 
-    public static Commit getLastSplitPoint(Commit commit1, Commit commit2) {
-        TreeMap<String, Integer> branch1DepthMap = (new BreadFirstPaths(commit1)).getDistMap();
-        TreeMap<String, Integer> branch2DepthMap = (new BreadFirstPaths(commit2)).getDistMap();
-        String splitPoint = null;
-        Integer minDepth = Integer.MAX_VALUE;
-        for (String commitHash: branch1DepthMap.keySet()) {
-            if (branch2DepthMap.containsKey(commitHash) && branch2DepthMap.get(commitHash) < minDepth) {
-                minDepth = branch2DepthMap.get(commitHash);
-                splitPoint = commitHash;
-            }
-        }
-        return Commit.getCommit(splitPoint);
+    /** Returns the hash of the latest common ancestor of two commits. */
+    public static String getLastSplitPoint(String commitHash1, String commitHash2) {
+        return CommitGraph.get().mergeBase(commitHash1, commitHash2);
     }
 
-    public static List<Commit> getAllCommits() {
-        List<File> commitFiles = Utils.filesIn(Commit.COMMIT_DIR);
-        List<Commit> commits = new ArrayList<>();
-        for (File file: commitFiles) {
-            commits.add(Commit.getCommit(file));
-        }
-        return commits;
+    /** Removes the objects no branch or staged file can reach, or with
+     *  DRYRUN only reports them. */
+    public static void gc(boolean dryRun) {
+        Gc.run(dryRun);
     }
 
     public static void updateCommitPointers(String commitHash) {
@@ -519,9 +719,42 @@ public class Repository {
 
     public static void writeCommitPointers() {
         /* Write head pointer */
-        Utils.writeContents(HEAD_FILE, head);
+        Journal.write(HEAD_FILE, head.getBytes(StandardCharsets.UTF_8));
         /* Write branch pointers */
-        Utils.writeObject(BRANCHES_FILE, branches);
+        Journal.write(BRANCHES_FILE, Utils.serialize(branches));
+    }
+
+    /** Returns the index, reading it on first use. */
+    public static Index getIndex() {
+        if (index == null) {
+            try (Trace.Span span = Trace.begin("read index")) {
+                index = Index.read(Commit.getCommit(branches.get(head)));
+            }
+        }
+        return index;
+    }
+
+    /** Writes the index back if this command changed it. */
+    public static void writeIndex() {
+        if (index != null) {
+            try (Trace.Span span = Trace.begin("write index")) {
+                index.write();
+            }
+        }
+    }
+
+    /** Forgets everything read by a previous command of this process,
+     *  except for what is still up to date.  Commits never change once
+     *  written, so cached commits are kept. */
+    public static void resetState() {
+        head = null;
+        branches = new TreeMap<>();
+        index = null;
+        CommitGraph.refresh();
+        CommitLog.refresh();
+        CommitIndex.refresh();
+        Shallow.refresh();
+        ObjectStore.refresh();
     }
 
     public static void readCommitPointers() {
@@ -0,0 +1,73 @@
+package gitlet;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import static gitlet.Utils.join;
+
+/** The commits of a shallow clone whose parents were left behind.
+ *
+ *  A clone made with a depth only has the commits that many parent links
+ *  from the head it cloned.  The oldest of them are listed in
+ *  SHALLOW_FILE, one id per line, and are treated as having no parents by
+ *  the commit graph, so every walk of the history stops at them, while
+ *  the commits themselves keep the parents they were made with and keep
+ *  their ids.
+ *
+ *  @author yyy
+ */
+class Shallow {
+
+    public static final File SHALLOW_FILE = join(Commit.GITLET_DIR, "SHALLOW");
+
+    /** Loaded lazily by get. */
+    private static TreeSet<String> boundary = null;
+
+    private static TreeSet<String> get() {
+        if (boundary == null) {
+            boundary = new TreeSet<>();
+            if (SHALLOW_FILE.exists()) {
+                for (String line: Utils.readContentsAsString(SHALLOW_FILE).split("\n")) {
+                    if (!line.isEmpty()) {
+                        boundary.add(line);
+                    }
+                }
+            }
+        }
+        return boundary;
+    }
+
+    /** Forgets what a previous command of this process read. */
+    static void refresh() {
+        boundary = null;
+    }
+
+    static boolean contains(String hash) {
+        return get().contains(hash);
+    }
+
+    /** Marks HASHES as commits whose parents this repository lacks. */
+    static void add(Collection<String> hashes) {
+        if (!get().addAll(hashes)) {
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (String hash: boundary) {
+            lines.append(hash).append('\n');
+        }
+        Journal.write(SHALLOW_FILE, lines.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Returns the parents of COMMIT, whose id is HASH, that this
+     *  repository has. */
+    static List<String> getParents(String hash, Commit commit) {
+        if (contains(hash)) {
+            return Collections.emptyList();
+        }
+        return commit.getParentHashes();
+    }
+}
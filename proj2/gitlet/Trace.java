@@ -0,0 +1,261 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/** Opt-in timing and I/O accounting of gitlet commands.
+ *
+ *  Setting the GITLET_TRACE environment variable makes every command
+ *  print, on standard error, a tree of the spans it went through: each
+ *  named step, with the calls of the same step under the same parent
+ *  merged into one line giving their number and total time, and the
+ *  bytes read and written, objects decoded, SHA-1 hashes computed,
+ *  fsyncs and directory listings done within it, the working files a
+ *  checkout wrote and deleted, and the hits and misses of the commit
+ *  cache.  Setting GITLET_TRACE_JSON to a file name also writes every span
+ *  of the command to that file in the Chrome trace event format, which
+ *  chrome://tracing and Perfetto display as a timeline.
+ *
+ *  Code marks a step with
+ *
+ *      try (Trace.Span span = Trace.begin("name")) { ... }
+ *
+ *  and reports work with count.  While tracing is off both do nothing
+ *  beyond testing ENABLED, a constant.  Spans nest per thread; work done
+ *  by a thread outside any span, such as a checkout worker, is counted in
+ *  the command's own span.
+ *
+ *  @author yyy
+ */
+class Trace {
+
+    static final boolean ENABLED = System.getenv("GITLET_TRACE") != null
+        || System.getenv("GITLET_TRACE_JSON") != null;
+
+    private static final String JSON_FILE = System.getenv("GITLET_TRACE_JSON");
+
+    /** Most spans kept for the Chrome trace of one command. */
+    private static final int MAX_EVENTS = 100000;
+
+    /** The kinds of work counted. */
+    enum Counter {
+        BYTES_READ("read"), BYTES_WRITTEN("written"), DECODED("decoded"),
+        SHA1("sha1"), FSYNC("fsync"), DIRS_LISTED("dirs"),
+        FILES_WRITTEN("files_written"), FILES_DELETED("files_deleted"),
+        CACHE_HITS("cache_hits"), CACHE_MISSES("cache_misses");
+
+        private final String label;
+
+        Counter(String label) {
+            this.label = label;
+        }
+    }
+
+    /** All calls of one step under the same parent step. */
+    private static class Node {
+        private final String name;
+        private final LinkedHashMap<String, Node> children = new LinkedHashMap<>();
+        private final long[] counts = new long[Counter.values().length];
+        private long calls;
+        private long nanos;
+
+        Node(String name) {
+            this.name = name;
+        }
+
+        /** Returns the counts of this node and everything below it. */
+        long[] totals() {
+            long[] result = counts.clone();
+            for (Node child: children.values()) {
+                long[] sub = child.totals();
+                for (int k = 0; k < result.length; k += 1) {
+                    result[k] += sub[k];
+                }
+            }
+            return result;
+        }
+    }
+
+    /** One call of a step, ended by close. */
+    static class Span implements AutoCloseable {
+        private final Node node;
+        private final long start;
+
+        private Span(Node node, long start) {
+            this.node = node;
+            this.start = start;
+        }
+
+        @Override
+        public void close() {
+            if (node == null) {
+                return;
+            }
+            long end = System.nanoTime();
+            synchronized (Trace.class) {
+                node.calls += 1;
+                node.nanos += end - start;
+                if (events.size() < MAX_EVENTS) {
+                    events.add(new Event(node.name, start, end, Thread.currentThread().getId()));
+                }
+            }
+            STACK.get().poll();
+        }
+    }
+
+    /** A finished span, for the Chrome trace. */
+    private static class Event {
+        private final String name;
+        private final long start;
+        private final long end;
+        private final long thread;
+
+        Event(String name, long start, long end, long thread) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+            this.thread = thread;
+        }
+    }
+
+    private static final Span NO_SPAN = new Span(null, 0);
+
+    /** The open spans of each thread, innermost first. */
+    private static final ThreadLocal<Deque<Node>> STACK =
+        ThreadLocal.withInitial(ArrayDeque::new);
+
+    /** The span of the command being traced, or null. */
+    private static Node root = null;
+    private static long rootStart;
+    private static List<Event> events = new ArrayList<>();
+
+    /** Starts tracing the command ARGS. */
+    static void startCommand(String[] args) {
+        if (!ENABLED) {
+            return;
+        }
+        synchronized (Trace.class) {
+            root = new Node(args.length == 0 ? "gitlet" : args[0]);
+            rootStart = System.nanoTime();
+            events = new ArrayList<>();
+        }
+        STACK.get().clear();
+    }
+
+    /** Ends tracing the current command and reports on it. */
+    static void finishCommand() {
+        if (!ENABLED || root == null) {
+            return;
+        }
+        long end = System.nanoTime();
+        synchronized (Trace.class) {
+            root.calls = 1;
+            root.nanos = end - rootStart;
+            print(System.err, root, 0);
+            if (JSON_FILE != null) {
+                writeJson(end);
+            }
+            root = null;
+        }
+        STACK.get().clear();
+    }
+
+    /** Returns a span of the step NAME, which must be closed. */
+    static Span begin(String name) {
+        if (!ENABLED || root == null) {
+            return NO_SPAN;
+        }
+        Deque<Node> stack = STACK.get();
+        Node node;
+        synchronized (Trace.class) {
+            Node parent = stack.isEmpty() ? root : stack.peek();
+            node = parent.children.computeIfAbsent(name, Node::new);
+        }
+        stack.push(node);
+        return new Span(node, System.nanoTime());
+    }
+
+    /** Counts AMOUNT of COUNTER in the current span. */
+    static void count(Counter counter, long amount) {
+        if (!ENABLED || root == null) {
+            return;
+        }
+        Deque<Node> stack = STACK.get();
+        synchronized (Trace.class) {
+            Node node = stack.isEmpty() ? root : stack.peek();
+            node.counts[counter.ordinal()] += amount;
+        }
+    }
+
+    private static void print(PrintStream out, Node node, int depth) {
+        StringBuilder line = new StringBuilder();
+        line.append("trace: ").append("  ".repeat(depth)).append(node.name);
+        while (line.length() < 40) {
+            line.append(' ');
+        }
+        line.append(String.format("%7d x %10.3f ms", node.calls, node.nanos / 1e6));
+        long[] totals = node.totals();
+        for (Counter counter: Counter.values()) {
+            long amount = totals[counter.ordinal()];
+            if (amount == 0) {
+                continue;
+            }
+            line.append("  ").append(counter.label).append(' ');
+            if (counter == Counter.BYTES_READ || counter == Counter.BYTES_WRITTEN) {
+                line.append(Utils.formatBytes(amount));
+            } else {
+                line.append(amount);
+            }
+        }
+        out.println(line);
+        for (Node child: node.children.values()) {
+            print(out, child, depth + 1);
+        }
+    }
+
+    /** Writes the spans of the command, which ended at END, to JSON_FILE
+     *  as Chrome trace events, with its counts on the command's own
+     *  event. */
+    private static void writeJson(long end) {
+        StringBuilder json = new StringBuilder("{\"traceEvents\":[\n");
+        appendEvent(json, root.name, rootStart, end, Thread.currentThread().getId());
+        json.append(",\"args\":{");
+        long[] totals = root.totals();
+        for (Counter counter: Counter.values()) {
+            if (counter.ordinal() > 0) {
+                json.append(',');
+            }
+            json.append('"').append(counter.label).append("\":").append(totals[counter.ordinal()]);
+        }
+        json.append("}}");
+        for (Event event: events) {
+            json.append(",\n");
+            appendEvent(json, event.name, event.start, event.end, event.thread);
+            json.append('}');
+        }
+        json.append("\n]}\n");
+        try {
+            Files.write(Paths.get(JSON_FILE), json.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.printf("trace: cannot write %s%n", JSON_FILE);
+        }
+    }
+
+    /** Appends a complete event, less its closing brace, to JSON.  Times
+     *  are in microseconds since the command started. */
+    private static void appendEvent(StringBuilder json, String name, long start, long end,
+                                    long thread) {
+        json.append(String.format(Locale.ROOT, "{\"name\":\"%s\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,"
+                + "\"ts\":%.3f,\"dur\":%.3f", name.replace("\"", "\\\""), thread,
+                (start - rootStart) / 1e3, (end - start) / 1e3));
+    }
+}
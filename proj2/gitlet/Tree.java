@@ -0,0 +1,332 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** The contents of one directory of a commit: for each name, either the
+ *  blob of a file or the tree of a subdirectory.
+ *
+ *  The id of a tree is the SHA-1 of its encoding, which holds the ids of
+ *  its entries, so two trees have the same id exactly when they hold the
+ *  same files with the same contents at every depth.  Comparing two
+ *  directories therefore never looks inside subdirectories whose ids
+ *  agree, however large they are.
+ *
+ *  A tree is either read from the object store, in which case its
+ *  subtrees are read only when first needed, or built in memory from a
+ *  list of files by fromFiles, in which case its id is worked out on
+ *  demand and nothing is stored until write is called.
+ *
+ *  Trees are never changed once their id may have been taken.  with and
+ *  without instead return a new tree that copies only the directories on
+ *  the path to the file changed and shares every other subtree with the
+ *  old one, so a commit changing a few files costs in proportion to
+ *  those files and their directories, not to all files: the shared
+ *  subtrees keep their ids and are never read, encoded or written again.
+ *
+ *  Paths of files below a tree are their names relative to it, with
+ *  directories separated by '/'.
+ *
+ *  @author yyy
+ */
+class Tree {
+
+    /** "gTRE", the first word of an encoded tree. */
+    private static final int MAGIC = 0x67545245;
+    private static final int VERSION = 1;
+
+    private static final int FILE = 1;
+    private static final int DIR = 2;
+
+    /** One name in a tree.  The tree of a directory is loaded lazily if
+     *  it came from the object store. */
+    private static class Entry {
+        private final boolean isDir;
+        private String hash;
+        private Tree tree;
+
+        Entry(boolean isDir, String hash, Tree tree) {
+            this.isDir = isDir;
+            this.hash = hash;
+            this.tree = tree;
+        }
+
+        String getHash() {
+            if (hash == null) {
+                hash = tree.getHash();
+            }
+            return hash;
+        }
+
+        Tree getTree() {
+            if (tree == null) {
+                tree = read(hash);
+            }
+            return tree;
+        }
+    }
+
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+    /** The id of this tree, or null until it is first asked for. */
+    private String hash;
+
+    private Tree() {
+    }
+
+    /** Returns the tree holding FILES, which maps the path of each file
+     *  to its blob id. */
+    static Tree fromFiles(Map<String, String> files) {
+        Tree root = new Tree();
+        for (Map.Entry<String, String> file: files.entrySet()) {
+            Tree dir = root;
+            String[] parts = file.getKey().split("/");
+            for (int k = 0; k < parts.length - 1; k += 1) {
+                Entry entry = dir.entries.get(parts[k]);
+                if (entry == null || !entry.isDir) {
+                    entry = new Entry(true, null, new Tree());
+                    dir.entries.put(parts[k], entry);
+                }
+                dir = entry.tree;
+            }
+            dir.entries.put(parts[parts.length - 1], new Entry(false, file.getValue(), null));
+        }
+        return root;
+    }
+
+    /** Returns a tree like this one, but with the file at PATH holding
+     *  blob BLOBHASH. */
+    Tree with(String path, String blobHash) {
+        return with(path.split("/"), 0, new Entry(false, blobHash, null));
+    }
+
+    /** Returns this tree with FILE put at the path PARTS[K..]. */
+    private Tree with(String[] parts, int k, Entry file) {
+        Tree result = copy();
+        if (k == parts.length - 1) {
+            result.entries.put(parts[k], file);
+            return result;
+        }
+        Entry entry = entries.get(parts[k]);
+        Tree dir = entry != null && entry.isDir ? entry.getTree() : new Tree();
+        result.entries.put(parts[k], new Entry(true, null, dir.with(parts, k + 1, file)));
+        return result;
+    }
+
+    /** Returns a tree like this one, but without the file at PATH, and
+     *  without directories that leaves empty.  Returns this tree if it
+     *  has no such file. */
+    Tree without(String path) {
+        return without(path.split("/"), 0);
+    }
+
+    /** Returns this tree without the file at the path PARTS[K..]. */
+    private Tree without(String[] parts, int k) {
+        boolean last = k == parts.length - 1;
+        Entry entry = entries.get(parts[k]);
+        if (entry == null || entry.isDir == last) {
+            return this;
+        }
+        Tree result = copy();
+        if (last) {
+            result.entries.remove(parts[k]);
+            return result;
+        }
+        Tree dir = entry.getTree().without(parts, k + 1);
+        if (dir == entry.getTree()) {
+            return this;
+        } else if (dir.entries.isEmpty()) {
+            result.entries.remove(parts[k]);
+        } else {
+            result.entries.put(parts[k], new Entry(true, null, dir));
+        }
+        return result;
+    }
+
+    /** Returns a new tree holding the same entries as this one. */
+    private Tree copy() {
+        Tree result = new Tree();
+        result.entries.putAll(entries);
+        return result;
+    }
+
+    /** Returns the blob of the file at PATH below this tree, or null if
+     *  there is none.  Only the trees on the way to it are read. */
+    String getFileHash(String path) {
+        String[] parts = path.split("/");
+        Tree dir = this;
+        for (int k = 0; k < parts.length - 1; k += 1) {
+            Entry entry = dir.entries.get(parts[k]);
+            if (entry == null || !entry.isDir) {
+                return null;
+            }
+            dir = entry.getTree();
+        }
+        Entry entry = dir.entries.get(parts[parts.length - 1]);
+        return entry == null || entry.isDir ? null : entry.getHash();
+    }
+
+    /** Returns the stored tree HASH. */
+    static Tree read(String hash) {
+        byte[] data = ObjectStore.readTree(hash);
+        if (data == null) {
+            throw Utils.error("Missing tree %s.", hash);
+        }
+        Trace.count(Trace.Counter.DECODED, 1);
+        Tree tree = new Tree();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw Utils.error("Corrupt tree %s.", hash);
+            }
+            byte[] id = new byte[Utils.UID_LENGTH / 2];
+            for (int n = in.readInt(); n > 0; n -= 1) {
+                boolean isDir = in.readByte() == DIR;
+                byte[] name = new byte[in.readInt()];
+                in.readFully(name);
+                in.readFully(id);
+                tree.entries.put(new String(name, StandardCharsets.UTF_8),
+                        new Entry(isDir, Utils.toHex(id), null));
+            }
+        } catch (IOException e) {
+            throw Utils.error("Corrupt tree %s.", hash);
+        }
+        tree.hash = hash;
+        return tree;
+    }
+
+    /** Returns this tree encoded as: magic word, version, number of
+     *  entries and, for each in name order, its kind, its name as a length
+     *  and UTF-8 bytes, and the raw id of its blob or tree. */
+    private byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> item: entries.entrySet()) {
+                byte[] name = item.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeByte(item.getValue().isDir ? DIR : FILE);
+                out.writeInt(name.length);
+                out.write(name);
+                out.write(Utils.fromHex(item.getValue().getHash()));
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw Utils.error("Internal error encoding tree.");
+        }
+    }
+
+    String getHash() {
+        if (hash == null) {
+            hash = Utils.sha1(encode());
+        }
+        return hash;
+    }
+
+    /** Stores this tree and every subtree not stored yet.  A stored tree
+     *  implies its subtrees are stored, so those are not looked into. */
+    void write() {
+        byte[] data = encode();
+        hash = Utils.sha1(data);
+        if (ObjectStore.hasTree(hash)) {
+            return;
+        }
+        for (Entry entry: entries.values()) {
+            if (entry.isDir && entry.tree != null) {
+                entry.tree.write();
+            }
+        }
+        ObjectStore.writeTree(hash, data);
+    }
+
+    /** Adds the path of every file below this tree, prefixed by PREFIX,
+     *  and its blob id to FILES. */
+    void flatten(String prefix, Map<String, String> files) {
+        for (Map.Entry<String, Entry> item: entries.entrySet()) {
+            Entry entry = item.getValue();
+            if (entry.isDir) {
+                entry.getTree().flatten(prefix + item.getKey() + "/", files);
+            } else {
+                files.put(prefix + item.getKey(), entry.hash);
+            }
+        }
+    }
+
+    /** Adds to SUBTREES the trees of the directories directly in this tree
+     *  and to BLOBS the ids of the files directly in it. */
+    void addChildren(Collection<Tree> subtrees, Collection<String> blobs) {
+        for (Entry entry: entries.values()) {
+            if (entry.isDir) {
+                subtrees.add(entry.getTree());
+            } else {
+                blobs.add(entry.getHash());
+            }
+        }
+    }
+
+    /** Adds to TREES and BLOBS the ids of this tree and of every tree and
+     *  blob below it that OLD, which may be null, does not hold at the same
+     *  path.  Trees already in TREES are not looked into again. */
+    void addNewObjects(Tree old, Collection<String> trees, Collection<String> blobs) {
+        if (old != null && old.getHash().equals(getHash()) || trees.contains(getHash())) {
+            return;
+        }
+        trees.add(getHash());
+        for (Map.Entry<String, Entry> item: entries.entrySet()) {
+            Entry entry = item.getValue();
+            Entry oldEntry = old == null ? null : old.entries.get(item.getKey());
+            if (oldEntry != null && oldEntry.isDir == entry.isDir
+                    && oldEntry.getHash().equals(entry.getHash())) {
+                continue;
+            }
+            if (entry.isDir) {
+                entry.getTree().addNewObjects(oldEntry != null && oldEntry.isDir
+                        ? oldEntry.getTree() : null, trees, blobs);
+            } else {
+                blobs.add(entry.getHash());
+            }
+        }
+    }
+
+    /** Adds to CHANGED the path, prefixed by PREFIX, of every file that is
+     *  in only one of the trees A and B, or in both with different
+     *  contents.  Either tree may be null, for an empty one. */
+    static void diff(Tree a, Tree b, String prefix, Collection<String> changed) {
+        if (a == b || (a != null && b != null && a.getHash().equals(b.getHash()))) {
+            return;
+        }
+        TreeSet<String> names = new TreeSet<>();
+        if (a != null) {
+            names.addAll(a.entries.keySet());
+        }
+        if (b != null) {
+            names.addAll(b.entries.keySet());
+        }
+        for (String name: names) {
+            Entry entryA = a == null ? null : a.entries.get(name);
+            Entry entryB = b == null ? null : b.entries.get(name);
+            if (entryA != null && entryB != null && entryA.isDir == entryB.isDir
+                    && entryA.getHash().equals(entryB.getHash())) {
+                continue;
+            }
+            if (entryA != null && !entryA.isDir || entryB != null && !entryB.isDir) {
+                changed.add(prefix + name);
+            }
+            Tree dirA = entryA != null && entryA.isDir ? entryA.getTree() : null;
+            Tree dirB = entryB != null && entryB.isDir ? entryB.getTree() : null;
+            if (dirA != null || dirB != null) {
+                diff(dirA, dirB, prefix + name + "/", changed);
+            }
+        }
+    }
+}
@@ -1,21 +1,35 @@
 package gitlet;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 
 /** Assorted utilities.
@@ -30,11 +44,13 @@ class Utils {
     /** The length of a complete SHA-1 UID as a hexadecimal numeral. */
     static final int UID_LENGTH = 40;
 
+
     /* SHA-1 HASH VALUES. */
 
     /** Returns the SHA-1 hash of the concatenation of VALS, which may
      *  be any mixture of byte arrays and Strings. */
     static String sha1(Object... vals) {
+        Trace.count(Trace.Counter.SHA1, 1);
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-1");
             for (Object val : vals) {
@@ -46,11 +62,36 @@ class Utils {
                     throw new IllegalArgumentException("improper type to sha1");
                 }
             }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
+            return toHex(md.digest());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** Direct buffer reused by every getFileHash call of a thread, so
+     *  hashing needs the same small amount of memory for any file size. */
+    private static final ThreadLocal<ByteBuffer> HASH_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(1 << 16));
+
+    /** Returns the SHA-1 hash of the raw bytes of FILE, reading it through
+     *  a FileChannel a buffer at a time rather than loading it whole.
+     *  Throws IllegalArgumentException in case of problems. */
+    static String getFileHash(File file) {
+        Trace.count(Trace.Counter.SHA1, 1);
+        ByteBuffer buffer = HASH_BUFFER.get();
+        try (FileChannel channel =
+                 FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                Trace.count(Trace.Counter.BYTES_READ, buffer.position());
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
             }
-            return result.toString();
+            return toHex(md.digest());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         } catch (NoSuchAlgorithmException excp) {
             throw new IllegalArgumentException("System does not support SHA-1");
         }
@@ -62,6 +103,26 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** Returns BYTES as a lower-case hexadecimal numeral. */
+    static String toHex(byte[] bytes) {
+        char[] digits = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i += 1) {
+            digits[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            digits[2 * i + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+        return new String(digits);
+    }
+
+    /** Returns the bytes of the hexadecimal numeral HEX, which must have
+     *  an even number of digits. */
+    static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i += 1) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -98,7 +159,9 @@ class Utils {
             throw new IllegalArgumentException("must be a normal file");
         }
         try {
-            return Files.readAllBytes(file.toPath());
+            byte[] contents = Files.readAllBytes(file.toPath());
+            Trace.count(Trace.Counter.BYTES_READ, contents.length);
+            return contents;
         } catch (IOException excp) {
             throw new IllegalArgumentException(excp.getMessage());
         }
@@ -124,11 +187,10 @@ class Utils {
             BufferedOutputStream str =
                 new BufferedOutputStream(Files.newOutputStream(file.toPath()));
             for (Object obj : contents) {
-                if (obj instanceof byte[]) {
-                    str.write((byte[]) obj);
-                } else {
-                    str.write(((String) obj).getBytes(StandardCharsets.UTF_8));
-                }
+                byte[] bytes = obj instanceof byte[] ? (byte[]) obj
+                    : ((String) obj).getBytes(StandardCharsets.UTF_8);
+                str.write(bytes);
+                Trace.count(Trace.Counter.BYTES_WRITTEN, bytes.length);
             }
             str.close();
         } catch (IOException | ClassCastException excp) {
@@ -141,6 +203,7 @@ class Utils {
     static <T extends Serializable> T readObject(File file,
                                                  Class<T> expectedClass) {
         try {
+            Trace.count(Trace.Counter.BYTES_READ, file.length());
             ObjectInputStream in =
                 new ObjectInputStream(new FileInputStream(file));
             T result = expectedClass.cast(in.readObject());
@@ -152,13 +215,255 @@ class Utils {
         }
     }
 
+    /** Return an object of type T decoded from DATA, as produced by
+     *  serialize, casting it to EXPECTEDCLASS.  Throws
+     *  IllegalArgumentException in case of problems. */
+    static <T extends Serializable> T deserialize(byte[] data,
+                                                  Class<T> expectedClass) {
+        try {
+            ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(data));
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
     /** Write OBJ to FILE. */
     static void writeObject(File file, Serializable obj) {
         writeContents(file, serialize(obj));
     }
 
+    /* STREAMING FILE CONTENTS */
+
+    /** Size of the buffers used to stream file contents. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Copy everything remaining in IN to OUT, a buffer at a time, and
+     *  return the number of bytes copied.  Neither stream is closed. */
+    static long copyStream(InputStream in, OutputStream out)
+        throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            out.write(buffer, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
+    /** Return the entire remaining contents of IN as a byte array, then
+     *  close IN.  Throws IllegalArgumentException in case of problems. */
+    static byte[] readContents(InputStream in) {
+        try (InputStream str = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Trace.count(Trace.Counter.BYTES_READ, copyStream(str, out));
+            return out.toByteArray();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Write everything remaining in IN to FILE, creating or overwriting
+     *  it as needed, then close IN.  Throws IllegalArgumentException in
+     *  case of problems. */
+    static void writeContents(File file, InputStream in) {
+        try (InputStream str = in;
+             OutputStream out = Files.newOutputStream(file.toPath())) {
+            Trace.count(Trace.Counter.BYTES_WRITTEN, copyStream(str, out));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Write the contents of SRC to DEST compressed with deflate.  DEST is
+     *  first written under a temporary name in its directory and then
+     *  renamed, so it never exists half written.  Throws
+     *  IllegalArgumentException in case of problems. */
+    static void writeCompressed(File src, File dest) {
+        File tmpFile = new File(dest.getParentFile(), "tmp_" + dest.getName());
+        try (InputStream in = Files.newInputStream(src.toPath());
+             OutputStream out = new DeflaterOutputStream(
+                 new BufferedOutputStream(
+                     Files.newOutputStream(tmpFile.toPath()), BUFFER_SIZE))) {
+            Trace.count(Trace.Counter.BYTES_READ, copyStream(in, out));
+        } catch (IOException excp) {
+            tmpFile.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Trace.count(Trace.Counter.BYTES_WRITTEN, tmpFile.length());
+        moveFileTo(tmpFile, dest);
+    }
+
+    /** Return DATA compressed the way writeCompressed compresses files. */
+    static byte[] deflate(byte[] data) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new DeflaterOutputStream(bytes)) {
+            out.write(data);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Return a stream of the decompressed contents of IN, which holds
+     *  data written by writeCompressed. */
+    static InputStream inflate(InputStream in) {
+        return new InflaterInputStream(
+            new BufferedInputStream(in, BUFFER_SIZE));
+    }
+
+    /** Return a stream of the decompressed contents of FILE, which was
+     *  written by writeCompressed.  Throws IllegalArgumentException in
+     *  case of problems. */
+    static InputStream openCompressed(File file) {
+        try {
+            return inflate(Files.newInputStream(file.toPath()));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return a stream that buffers what is printed to System.out, for
+     *  commands printing much.  It must be flushed, but not closed.  The
+     *  buffer is kept small so that a closed output shows up in
+     *  System.out.checkError soon after. */
+    static PrintStream bufferedOut() {
+        return new PrintStream(new BufferedOutputStream(System.out));
+    }
+
+    /* MAPPED FILE CONTENTS */
+
+    /** Files shorter than this are read rather than mapped, as mapping
+     *  costs more than copying a few pages. */
+    private static final long MAP_THRESHOLD = 1 << 16;
+
+    /** Return a read-only view of the contents of the region of FILE
+     *  starting at OFFSET and LENGTH bytes long, mapped into memory unless
+     *  it is short.  Throws IllegalArgumentException in case of
+     *  problems. */
+    static ByteBuffer map(File file, long offset, long length) {
+        try (FileChannel channel =
+                 FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Trace.count(Trace.Counter.BYTES_READ, length);
+            if (length >= MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IllegalArgumentException("file is shorter than expected");
+                }
+            }
+            return buffer.flip().asReadOnlyBuffer();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return a read-only view of the entire contents of FILE, as map. */
+    static ByteBuffer map(File file) {
+        return map(file, 0, file.length());
+    }
+
+    /** Return the decompressed contents of COMPRESSED, which holds data
+     *  written by writeCompressed, inflated straight out of it into a
+     *  single buffer.  Throws IllegalArgumentException in case of
+     *  problems. */
+    static ByteBuffer inflate(ByteBuffer compressed) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.duplicate());
+            // Text usually deflates to a quarter of its size or more
+            long guess = Math.max(BUFFER_SIZE, 4L * compressed.remaining());
+            ByteBuffer out = ByteBuffer.allocate((int) Math.min(guess, 1 << 30));
+            while (!inflater.finished()) {
+                if (!out.hasRemaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(out.capacity() * 2);
+                    out = bigger.put(out.flip());
+                }
+                if (inflater.inflate(out) == 0
+                    && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("truncated compressed data");
+                }
+            }
+            return out.flip().asReadOnlyBuffer();
+        } catch (DataFormatException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Write the bytes remaining in each of CONTENTS to FILE, creating or
+     *  overwriting it as needed, with gathering writes that take them
+     *  straight from the buffers.  The buffers themselves are left
+     *  unchanged.  Throws IllegalArgumentException in case of problems. */
+    static void writeContents(File file, List<ByteBuffer> contents) {
+        ByteBuffer[] buffers = new ByteBuffer[contents.size()];
+        long total = 0;
+        for (int i = 0; i < buffers.length; i += 1) {
+            buffers[i] = contents.get(i).duplicate();
+            total += buffers[i].remaining();
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                 StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            long left = total;
+            while (left > 0) {
+                left -= channel.write(buffers);
+            }
+            Trace.count(Trace.Counter.BYTES_WRITTEN, total);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return BYTES as a size for people to read, such as 1.5 KB. */
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        } else if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+
     /* DIRECTORIES */
 
+    /** Deletes the plain file FILE, then every directory between it and
+     *  ROOT that this leaves empty. */
+    static void deleteWorkingFile(File file, File root) {
+        if (!file.isFile() || !file.delete()) {
+            return;
+        }
+        for (File dir = file.getParentFile(); dir != null && !dir.equals(root);
+             dir = dir.getParentFile()) {
+            String[] rest = dir.list();
+            if (rest == null || rest.length > 0 || !dir.delete()) {
+                break;
+            }
+        }
+    }
+
+    /** Deletes DIR and everything in it, if it exists. */
+    static void deleteDirectory(File dir) {
+        File[] entries = dir.listFiles();
+        if (entries != null) {
+            for (File entry: entries) {
+                if (entry.isDirectory()) {
+                    deleteDirectory(entry);
+                } else {
+                    entry.delete();
+                }
+            }
+        }
+        dir.delete();
+    }
+
     /** Filter out all but plain files. */
     private static final FilenameFilter PLAIN_FILES =
         new FilenameFilter() {
@@ -172,6 +477,7 @@ class Utils {
      *  lexicographic order as Java Strings.  Returns null if DIR does
      *  not denote a directory. */
     static List<String> plainFilenamesIn(File dir) {
+        Trace.count(Trace.Counter.DIRS_LISTED, 1);
         String[] files = dir.list(PLAIN_FILES);
         if (files == null) {
             return null;
@@ -197,6 +503,7 @@ class Utils {
 
 
     static void _listf(File dir, List<File> files) {
+        Trace.count(Trace.Counter.DIRS_LISTED, 1);
         File[] fArray = dir.listFiles();
         if (fArray != null) {
             for (File file: fArray) {
@@ -257,29 +564,18 @@ class Utils {
         System.out.println();
     }
 
-    /** Print a message then exit. */
+    /** Stop the current command, which then prints MESSAGE and exits
+     *  without saving any of its changes (see Main.run). */
     static void exitWithMsg(String message) {
-        if (message != null && !message.equals("")) {
-            System.out.printf(message);
-        }
-        System.exit(0);
+        throw new GitletException(message);
     }
 
-    static String getFormattedDate(Date date) {
-        // Create a Formatter with the desired format and locale
-        Formatter formatter = new Formatter(Locale.US);
-        try {
-            formatter.format("%1$ta %1$tb %1$td %1$tT %1$tY %1$tz", date);
-            // Close the Formatter
-            return formatter.toString();
-        } finally {
-            formatter.close();
-        }
-
-    }
+    /** Format of the dates of log, made once rather than per commit. */
+    private static final DateTimeFormatter DATE_FORMAT =
+        DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss yyyy Z", Locale.US);
 
-    static String getFileHash(File file) {
-        return Utils.sha1(Utils.readContentsAsString(file));
+    static String getFormattedDate(Date date) {
+        return DATE_FORMAT.format(date.toInstant().atZone(ZoneId.systemDefault()));
     }
 
     static void copyFileTo(File srcFile, File destFile) {
@@ -290,6 +586,22 @@ class Utils {
         }
     }
 
+    /** Forces FILE, a plain file or a directory, to disk.  A directory is
+     *  synced so that files just renamed into it keep their names after a
+     *  crash; where directories cannot be opened for that, as on Windows,
+     *  renames are durable anyway and nothing is done.  Throws
+     *  IllegalArgumentException in case of problems. */
+    static void sync(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+            Trace.count(Trace.Counter.FSYNC, 1);
+        } catch (IOException excp) {
+            if (!file.isDirectory()) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+
     static void moveFileTo(File srcFile, File destFile) {
         try {
             Files.move(srcFile.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);